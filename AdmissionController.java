@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.LongAdder; // Admitted and rejected counters
+import org.json.JSONObject; // Counters for GET /stats
+
+// Bounds how many requests of one kind (GET or PUT) are processed at once and how many may wait for a turn.
+// Requests beyond the queue, or that wait longer than the timeout, are rejected so one kind of traffic
+// cannot take every worker thread from the other. Limits can be changed at runtime.
+public class AdmissionController {
+    private final String name;
+    private int maxConcurrent;
+    private int maxQueued;
+    private long queueTimeoutMs;
+    // Requests being processed and waiting, guarded by this
+    private int active;
+    private int queued;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    public AdmissionController(String name, int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+        this.name = name;
+        setLimits(maxConcurrent, maxQueued, queueTimeoutMs);
+    }
+
+    // Create a controller configured from system properties, e.g. -Dadmission.put.concurrent=8 -Dadmission.put.queued=16
+    static AdmissionController fromSystemProperties(String name, int defaultConcurrent, int defaultQueued) {
+        return new AdmissionController(name,
+            Integer.getInteger("admission." + name + ".concurrent", defaultConcurrent),
+            Integer.getInteger("admission." + name + ".queued", defaultQueued),
+            Long.getLong("admission.queue.timeout.ms", 1000));
+    }
+
+    // Change the limits, waiting requests see the new values immediately
+    synchronized void setLimits(int maxConcurrent, int maxQueued, long queueTimeoutMs) {
+        if (maxConcurrent < 1 || maxQueued < 0 || queueTimeoutMs < 0) {
+            throw new IllegalArgumentException("Invalid admission limits for " + name);
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        notifyAll();
+    }
+
+    synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    synchronized int getMaxQueued() {
+        return maxQueued;
+    }
+
+    synchronized long getQueueTimeoutMs() {
+        return queueTimeoutMs;
+    }
+
+    // Wait for a turn, returns false when rejected. Every true result must be followed by release().
+    synchronized boolean tryAdmit() throws InterruptedException {
+        if (active < maxConcurrent) {
+            active++;
+            admitted.increment();
+            return true;
+        }
+        if (queued >= maxQueued) {
+            rejected.increment();
+            return false;
+        }
+
+        queued++;
+        try {
+            long deadline = System.currentTimeMillis() + queueTimeoutMs;
+            while (active >= maxConcurrent) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    rejected.increment();
+                    return false;
+                }
+                wait(remaining);
+            }
+            active++;
+            admitted.increment();
+            return true;
+        } finally {
+            queued--;
+        }
+    }
+
+    // Finish a request admitted by tryAdmit()
+    synchronized void release() {
+        active--;
+        notifyAll();
+    }
+
+    // Limits and counters for GET /stats
+    synchronized JSONObject toJson() {
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("max_concurrent", maxConcurrent);
+        statsJson.put("max_queued", maxQueued);
+        statsJson.put("queue_timeout_ms", queueTimeoutMs);
+        statsJson.put("active", active);
+        statsJson.put("queued", queued);
+        statsJson.put("admitted", admitted.sum());
+        statsJson.put("rejected", rejected.sum());
+        return statsJson;
+    }
+}
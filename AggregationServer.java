@@ -1,6 +1,12 @@
 import java.io.*; // Provides classes for input and output operations such as reading and writing files
 import java.net.*; // Provides classes for socket networking
-import java.util.concurrent.*; // Provides thread pools and task scheduling
+import java.nio.charset.StandardCharsets; // Request bodies are decoded as UTF-8
+import java.util.ArrayList; // Records selected by a spatial query
+import java.util.Arrays; // Names of the shared admission limits
+import java.util.HashMap; // Holds the query parameters of a request
+import java.util.List; // Records selected by a spatial query
+import java.util.Map; // Key-value view of query parameters
+import java.util.concurrent.*; // Provides thread pools, task scheduling and the feed registry
 import org.json.JSONObject; // For creating, parsing, and manipulating JSON object
 import java.util.concurrent.atomic.AtomicLong; // Thread safe class that implements increment and updating values like used for simulating Lamport Clock for proper order of events in the systems
 
@@ -10,72 +16,380 @@ public class AggregationServer {
     private static final int SERVER_PORT = 4567;  
     // Weather data expiry time - 30 Seconds
     private static final int DATA_EXPIRY_TIME_MS = 30000;
-    // ConcurrentHashMap for storing weather data - Take key as ID
-    private static final ConcurrentHashMap<String, WeatherRecord> weatherDataMap = new ConcurrentHashMap<>();  
+    // Name of the feed started by main(), also reachable as /feeds/default/weather.json
+    static final String DEFAULT_FEED = "default";
+    // Path prefix of the feed namespaces, /feeds/<name>/weather.json
+    private static final String FEED_PREFIX = "/feeds/";
+    // How long a worker waits for the next bytes of a request before closing the connection, -Dserver.read.timeout.ms
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("server.read.timeout.ms", 10000);
+    // Frames of a binary stream per rate-limit token, -Dbinary.frames.per.token
+    private static final int BINARY_FRAMES_PER_TOKEN = Integer.getInteger("binary.frames.per.token", 100);
+    // A binary stream hands its PUT slot back after this many frames or milliseconds, checked at the end of a batch,
+    // -Dbinary.max.frames and -Dbinary.max.stream.ms
+    private static final int BINARY_MAX_FRAMES = Integer.getInteger("binary.max.frames", 10000);
+    private static final long BINARY_MAX_STREAM_MS = Long.getLong("binary.max.stream.ms", 10000);
+
+    // Shared by every feed in the process:
+    // Separate admission limits so a PUT flood cannot take the threads GETs need
+    private static final AdmissionController getAdmission = AdmissionController.fromSystemProperties("get", 32, 64);
+    private static final AdmissionController putAdmission = AdmissionController.fromSystemProperties("put", 8, 16);
+    // Bounded worker pool for client connections of all feeds and ports, -Dserver.threads (default 128)
+    private static final ThreadPoolExecutor connectionPool = createConnectionPool(Integer.getInteger("server.threads", 128));
+    // One thread runs the expiry of every feed
+    private static final ScheduledExecutorService expiryScheduler = createExpiryScheduler();
+    // Started feeds by name, each is reachable on every port under /feeds/<name>/
+    private static final ConcurrentHashMap<String, AggregationServer> feeds = new ConcurrentHashMap<>();
+    // Admission limits /admin/limits can change besides the rate limit of the feed
+    private static final List<String> SHARED_LIMIT_PARAMETERS =
+            Arrays.asList("put_concurrency", "put_queue", "get_concurrency", "get_queue", "queue_timeout_ms");
+
+    // Per feed:
+    private final String feedName;
+    // Latest weather data per station ID, on the heap or off-heap depending on -Dstore
+    private final WeatherStore weatherStore = WeatherStore.fromSystemProperties();
+    // Bounded time series of the numeric fields for every station, kept beyond the data expiry, within this feed's
+    // share of the process-wide history budget
+    private final StationHistory stationHistory = StationHistory.fromSystemProperties();
+    // Incrementally maintained min/max/avg per state over time windows, up to the expiry time of a record
+    private final StateAggregates stateAggregates = new StateAggregates(DATA_EXPIRY_TIME_MS);
+    // Grid index over station lat/lon for nearest-station and bounding-box queries
+    private final SpatialIndex spatialIndex = SpatialIndex.fromSystemProperties();
+    // Token bucket per content server, shared by HTTP and binary PUTs
+    private final RateLimiter putRateLimiter = RateLimiter.fromSystemProperties();
+    // Changes whenever a record is stored or expires, the ETag of the full feed is derived from it
+    private final AtomicLong dataVersion = new AtomicLong(0);
+    // Distinguishes the versions of this run from those of an earlier run of the server
+    private final String dataEpoch = Long.toHexString(System.currentTimeMillis());
     // To simulate LamportClock used AtomicLong
-    private static final AtomicLong LamportClock = new AtomicLong(0);  
+    private final AtomicLong lamportClock = new AtomicLong(0);
+    // Ports this feed listens on itself, closed by stop()
+    private final List<ServerSocket> serverSockets = new CopyOnWriteArrayList<>();
+    private ScheduledFuture<?> cleanupTask;
+
+    // A feed with its own data, call start() to make it reachable and listen() to give it its own port
+    public AggregationServer(String feedName) {
+        if (feedName.isEmpty() || feedName.contains("/")) {
+            throw new IllegalArgumentException("Invalid feed name: " + feedName);
+        }
+        this.feedName = feedName;
+    }
 
+    // java AggregationServer [port] [--feed <name>[:<port>] ...]
+    // The default feed answers on port, every further feed under /feeds/<name>/ and optionally on its own port
     public static void main(String[] args) {
         // Verify whether the port is given as an argument; if not, use the default
-        int port = (args.length > 0) ? Integer.parseInt(args[0]) : SERVER_PORT;
+        int port = (args.length > 0 && !args[0].startsWith("--")) ? Integer.parseInt(args[0]) : SERVER_PORT;
+        AggregationServer defaultFeed = new AggregationServer(DEFAULT_FEED);
         
         // Create Server Socket to receive client connection
         try (ServerSocket serverSocket = new ServerSocket(port)) {
             System.out.println("Server is running on  port " + port);
 
-            // Calling initiateDataCleanupTask() to remove expired weather data
-            initiateDataCleanupTask();  
+            // Register the feed and schedule the removal of its expired weather data
+            defaultFeed.start();
 
-            // Accept client connection continuously
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                // creating new thread to handle each client for concurrency 
-                new Thread(() -> processClientRequest(clientSocket)).start();  
+            for (int i = 0; i < args.length - 1; i++) {
+                if (args[i].equals("--feed")) {
+                    startFeed(args[++i]);
+                }
             }
+
+            // Accept client connection continuously
+            defaultFeed.serve(serverSocket);
         } catch (IOException e) {
             // Print any I/O Error 
             e.printStackTrace();
         }
     }
 
+    // Start a further feed from a "<name>[:<port>]" argument. A feed that cannot start is stopped and reported,
+    // the default feed and the other feeds keep running.
+    private static void startFeed(String feedArgument) {
+        String[] feedSpec = feedArgument.split(":");
+        AggregationServer feed;
+        try {
+            feed = new AggregationServer(feedSpec[0]);
+            feed.start();
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            System.err.println("Feed " + feedArgument + " not started: " + e.getMessage());
+            return;
+        }
+        try {
+            if (feedSpec.length > 1) {
+                feed.listen(Integer.parseInt(feedSpec[1]));
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Also covers an invalid port number
+            feed.stop();
+            System.err.println("Feed " + feedArgument + " not started: " + e.getMessage());
+            return;
+        }
+        System.out.println("Feed " + feedSpec[0] + " is available under " + FEED_PREFIX + feedSpec[0] + "/");
+    }
+
+    // Make the feed reachable under /feeds/<name>/ and start expiring its data on the shared scheduler
+    public synchronized void start() {
+        if (feeds.putIfAbsent(feedName, this) != null) {
+            throw new IllegalStateException("Feed " + feedName + " is already running");
+        }
+        splitHistoryBudget();
+        // Every five seconds, clean up
+        cleanupTask = expiryScheduler.scheduleAtFixedRate(this::removeExpiredData, 0, 5, TimeUnit.SECONDS);
+    }
+
+    // Give every running feed an equal share of the process-wide history budget, called when a feed starts or stops
+    private static synchronized void splitHistoryBudget() {
+        long share = StationHistory.PROCESS_BUDGET_BYTES / Math.max(1, feeds.size());
+        for (AggregationServer feed : feeds.values()) {
+            feed.stationHistory.setBudgetBytes(share);
+        }
+    }
+
+    // Listen on a port of its own in the background, returns the bound port (useful with port 0)
+    public int listen(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        serverSockets.add(serverSocket);
+        Thread acceptThread = new Thread(() -> {
+            try {
+                serve(serverSocket);
+            } catch (IOException e) {
+                // Closed by stop()
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }, "AggregationServer-" + feedName + "-" + serverSocket.getLocalPort());
+        acceptThread.start();
+        System.out.println("Feed " + feedName + " is running on port " + serverSocket.getLocalPort());
+        return serverSocket.getLocalPort();
+    }
+
+    // Stop listening on the feed's own ports, unregister it and stop its expiry. Shared pools keep running.
+    public synchronized void stop() {
+        if (feeds.remove(feedName, this)) {
+            splitHistoryBudget();
+        }
+        if (cleanupTask != null) {
+            cleanupTask.cancel(false);
+        }
+        for (ServerSocket serverSocket : serverSockets) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing port of feed " + feedName + ": " + e.getMessage());
+            }
+        }
+        serverSockets.clear();
+    }
+
+    // Accept client connections until the socket is closed, requests without a feed prefix go to this feed
+    private void serve(ServerSocket serverSocket) throws IOException {
+        while (true) {
+            Socket clientSocket = serverSocket.accept();
+            // Handle each client on the worker pool for concurrency
+            try {
+                connectionPool.execute(() -> processClientRequest(clientSocket));
+            } catch (RejectedExecutionException e) {
+                rejectConnection(clientSocket);
+            }
+        }
+    }
+
     // Handles client requests PUT or GET
-    private static void processClientRequest(Socket clientSocket) {
-        try (BufferedReader inputReader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-             PrintWriter outputWriter = new PrintWriter(clientSocket.getOutputStream(), true)) {
-            
-            // Reading first line of request (GET or PUT)
-            String clientRequest = inputReader.readLine();
-            // Log incoming request
-            System.out.println("Request is received: " + clientRequest);
-            
-            // Handle GET requests
-            if (clientRequest.startsWith("GET")) {
-                handleGetRequest(outputWriter);
-            
-            // Handle PUT requests
-            } else if (clientRequest.startsWith("PUT")) {
-                // Log that we are handling a PUT request
-                System.out.println("Handling PUT request : ");
-                handlePutRequest(inputReader, outputWriter);
-            } else {
-                outputWriter.println("HTTP/1.1 400 Bad Request"); // Respond with bad request
+    private void processClientRequest(Socket clientSocket) {
+        try (InputStream inputStream = new BufferedInputStream(clientSocket.getInputStream());
+             OutputStream outputStream = clientSocket.getOutputStream()) {
+            // Responses are written whole, -Dtcp.nodelay decides whether Nagle may hold them back
+            HttpMessage.configure(clientSocket);
+            // An idle or stalled client must not hold a pool worker forever
+            clientSocket.setSoTimeout(READ_TIMEOUT_MS);
+
+            // Peek at the first byte: binary ingest streams start with a magic byte that no HTTP request line can
+            inputStream.mark(1);
+            int firstByte = inputStream.read();
+            inputStream.reset();
+            if (firstByte == (BinaryWeatherProtocol.MAGIC[0] & 0xFF)) {
+                DataInputStream binaryInput = new DataInputStream(inputStream);
+                DataOutputStream binaryOutput = new DataOutputStream(outputStream);
+                // The preamble names the feed, empty for the feed of this port
+                String streamFeedName = BinaryWeatherProtocol.readPreamble(binaryInput);
+                AggregationServer feed = streamFeedName.isEmpty() ? this : feeds.get(streamFeedName);
+                if (feed == null) {
+                    BinaryWeatherProtocol.writeUnknownFeed(binaryOutput);
+                    return;
+                }
+                feed.handleBinaryPutStream(binaryInput, binaryOutput, clientSocket.getInetAddress().getHostAddress());
+                return;
+            }
+
+            // Reading first line of request (GET or PUT), headers and body are read as bytes
+            try {
+                handleHttpRequest(clientSocket, inputStream, outputStream);
+            } catch (HttpMessage.TooLargeException e) {
+                // Request line, headers or body over their limit: answered without reading the rest
+                System.out.println("Request from " + clientSocket.getInetAddress().getHostAddress() + " refused: " + e.getMessage());
+                HttpMessage.start(e.statusLine).send(outputStream);
+                discardUnread(clientSocket, inputStream);
             }
 
+        } catch (SocketTimeoutException e) {
+            System.out.println("Closing connection from " + clientSocket.getInetAddress().getHostAddress()
+                               + ": no data for " + READ_TIMEOUT_MS + " ms");
         } catch (IOException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            // Server is shutting down
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Read the request line and pass the request to the feed it names
+    private void handleHttpRequest(Socket clientSocket, InputStream inputStream, OutputStream outputStream)
+            throws IOException, InterruptedException {
+        String clientRequest = HttpMessage.readLine(inputStream);
+        if (clientRequest == null) {
+            return;
+        }
+        // Log incoming request
+        System.out.println("Request is received: " + clientRequest);
+
+        // Requests under /feeds/<name>/ go to that feed, the rest to the feed of this port
+        String path = requestPath(clientRequest);
+        AggregationServer feed = this;
+        boolean namespaced = path.startsWith(FEED_PREFIX);
+        if (namespaced) {
+            int nameEnd = path.indexOf('/', FEED_PREFIX.length());
+            feed = feeds.get(nameEnd < 0 ? path.substring(FEED_PREFIX.length()) : path.substring(FEED_PREFIX.length(), nameEnd));
+            path = nameEnd < 0 ? "/" : path.substring(nameEnd);
+            if (feed == null) {
+                HttpMessage.start("HTTP/1.1 404 Not Found").send(outputStream);
+                return;
+            }
+        }
+        feed.handleRequest(clientRequest, path, namespaced, clientSocket.getInetAddress(), inputStream, outputStream);
+    }
+
+    // Closing a connection with unread request bytes resets it, and the reset can discard the answer the client
+    // has not read yet. Half-close instead and drop what the client still sends, for a moment and up to a body.
+    private static void discardUnread(Socket clientSocket, InputStream inputStream) throws IOException {
+        clientSocket.shutdownOutput();
+        clientSocket.setSoTimeout(1000);
+        byte[] discarded = new byte[8192];
+        long remaining = HttpMessage.MAX_BODY_BYTES;
+        try {
+            int read;
+            while (remaining > 0 && (read = inputStream.read(discarded)) != -1) {
+                remaining -= read;
+            }
+        } catch (SocketTimeoutException e) {
+            // The client keeps the connection open, close it anyway
         }
     }
 
-    // Handle GET requests and return weather data in JSON format
-    private static void handleGetRequest(PrintWriter output) {
-        LamportClock.incrementAndGet();  // Increment lamport clock
+    // Handle an HTTP request for this feed, path is the request path without the feed prefix and namespaced tells
+    // whether the request named the feed with /feeds/<name>/
+    private void handleRequest(String clientRequest, String path, boolean namespaced, InetAddress clientAddress,
+                               InputStream inputStream, OutputStream outputStream) throws IOException, InterruptedException {
+        // Handle GET requests
+        if (clientRequest.startsWith("GET")) {
+            // Headers are read before taking a turn, so a slow client cannot hold a GET slot while it sends them
+            Map<String, String> requestHeaders = HttpMessage.readHeaders(inputStream);
+            // Wait for a GET turn or respond 503
+            if (!getAdmission.tryAdmit()) {
+                respondUnavailable(outputStream);
+                return;
+            }
+            try {
+                Map<String, String> queryParameters = parseQueryParameters(clientRequest);
+                if (path.equals("/stats")) {
+                    handleStatsRequest(outputStream);
+                } else if (path.equals("/aggregates")) {
+                    handleAggregatesRequest(queryParameters, outputStream);
+                } else if (queryParameters.containsKey("near") || queryParameters.containsKey("bbox")) {
+                    handleSpatialRequest(queryParameters, outputStream);
+                } else if (queryParameters.containsKey("id")) {
+                    handleHistoryRequest(queryParameters, outputStream);
+                } else {
+                    handleFeedRequest(requestHeaders.get("If-None-Match"), outputStream);
+                }
+            } finally {
+                getAdmission.release();
+            }
+        
+        // Runtime tuning of the limits, the shared admission limits only outside the feed namespace
+        } else if (clientRequest.startsWith("PUT") && path.equals("/admin/limits")) {
+            handleLimitsRequest(parseQueryParameters(clientRequest), !namespaced, clientAddress, outputStream);
+
+        // Handle PUT requests
+        } else if (clientRequest.startsWith("PUT")) {
+            // Log that we are handling a PUT request
+            System.out.println("Handling PUT request for feed " + feedName + " : ");
+            handlePutRequest(inputStream, outputStream, clientAddress.getHostAddress());
+        } else {
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(outputStream); // Respond with bad request
+        }
+    }
+
+    // Worker pool with a bounded queue, idle threads are released
+    private static ThreadPoolExecutor createConnectionPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                                                         new ArrayBlockingQueue<>(threads * 2));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    // Every worker is busy and the queue is full: answer 503 without reading the request
+    private static void rejectConnection(Socket clientSocket) {
+        try (OutputStream outputStream = clientSocket.getOutputStream()) {
+            respondUnavailable(outputStream);
+        } catch (IOException e) {
+            System.err.println("Error rejecting connection: " + e.getMessage());
+        }
+    }
+
+    // Respond 503 when no admission slot is free
+    private static void respondUnavailable(OutputStream output) throws IOException {
+        HttpMessage.start("HTTP/1.1 503 Service Unavailable")
+                   .header("Retry-After", "1")
+                   .send(output);
+    }
+
+    // Respond 429 when a source exceeds its rate, Retry-After in whole seconds
+    private static void respondTooManyRequests(OutputStream output, long waitMs) throws IOException {
+        HttpMessage.start("HTTP/1.1 429 Too Many Requests")
+                   .header("Retry-After", String.valueOf(retryAfterSeconds(waitMs)))
+                   .send(output);
+    }
+
+    // Wait of the rate limiter in whole seconds, at least one
+    private static int retryAfterSeconds(long waitMs) {
+        return (int) Math.max(1, (waitMs + 999) / 1000);
+    }
+
+    // Handle GET /weather.json, answering 304 when the client's cached copy (If-None-Match) is still current
+    private void handleFeedRequest(String ifNoneMatch, OutputStream output) throws IOException {
+        // Taken before the records are read, so a concurrent update can only make the tag older than the body
+        String etag = "\"" + feedName + "-" + dataEpoch + "-" + dataVersion.get() + "\"";
+        if (etag.equals(ifNoneMatch)) {
+            lamportClock.incrementAndGet();  // Increment lamport clock
+            HttpMessage.start("HTTP/1.1 304 Not Modified")
+                       .header("ETag", etag)
+                       .send(output);
+            return;
+        }
+        handleGetRequest(weatherStore.values(), etag, output);
+    }
+
+    // Handle GET requests and return weather data in JSON format, etag is null for responses that are not cached
+    private void handleGetRequest(Iterable<WeatherRecord> records, String etag, OutputStream output) throws IOException {
+        lamportClock.incrementAndGet();  // Increment lamport clock
 
         // Used jsonBuilder to display output in correct format
         StringBuilder jsonBuilder = new StringBuilder();
         jsonBuilder.append("{\n"); 
 
         // Iteratively go through each weather record to generate the JSON response
-        for (WeatherRecord record : weatherDataMap.values()) {
+        for (WeatherRecord record : records) {
             JSONObject weatherJson = record.getWeatherData();
             // Append each weather data
             jsonBuilder.append("  \"").append(weatherJson.getString("id")).append("\": ").append(weatherJson.toString(4)).append(",\n");
@@ -90,45 +404,293 @@ public class AggregationServer {
         String prettyPrintedJson = jsonBuilder.toString();
 
         // HTTP response 
-        output.println("HTTP/1.1 200 OK");
-        output.println("Content-Type: application/json");
-        output.println("Content-Length: " + prettyPrintedJson.length()); 
-        output.println();
-        output.println(prettyPrintedJson); // Sending JSON response
+        HttpMessage response = HttpMessage.start("HTTP/1.1 200 OK")
+                                          .header("Content-Type", "application/json");
+        if (etag != null) {
+            response.header("ETag", etag);
+        }
+        response.body(prettyPrintedJson).send(output);
         System.out.println("Sent GET response:\n" + prettyPrintedJson);  // Log JSON response
     }
     
 
-    // handlePutRequest() method to Handle PUT requests and store weather data
-    private static void handlePutRequest(BufferedReader input, PrintWriter output) throws IOException {
-        LamportClock.incrementAndGet();  // Increment lamport clock
+    // Handle GET /weather.json?near=lat,lon&k=5 (nearest first) and GET /weather.json?bbox=minLat,minLon,maxLat,maxLon
+    private void handleSpatialRequest(Map<String, String> queryParameters, OutputStream output) throws IOException {
+        List<String> ids;
+        try {
+            if (queryParameters.containsKey("near")) {
+                String[] point = queryParameters.get("near").split(",");
+                int k = Integer.parseInt(queryParameters.getOrDefault("k", "5"));
+                if (point.length != 2 || k <= 0) {
+                    HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+                    return;
+                }
+                ids = spatialIndex.nearest(Double.parseDouble(point[0].trim()), Double.parseDouble(point[1].trim()), k);
+            } else {
+                String[] box = queryParameters.get("bbox").split(",");
+                if (box.length != 4) {
+                    HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+                    return;
+                }
+                ids = spatialIndex.withinBox(Double.parseDouble(box[0].trim()), Double.parseDouble(box[1].trim()),
+                                             Double.parseDouble(box[2].trim()), Double.parseDouble(box[3].trim()));
+            }
+        } catch (NumberFormatException e) {
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+            return;
+        }
 
-        String line;
-        int contentLength = 0;
+        // Look up the current records, skipping stations that expired after the index lookup
+        List<WeatherRecord> records = new ArrayList<>();
+        for (String id : ids) {
+            WeatherRecord record = weatherStore.get(id);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        handleGetRequest(records, null, output);
+    }
+
+    // Handle GET /weather.json?id=...&from=...&to=... and return the station's history between from and to (epoch ms)
+    private void handleHistoryRequest(Map<String, String> queryParameters, OutputStream output) throws IOException {
+        lamportClock.incrementAndGet();  // Increment lamport clock
+
+        long from;
+        long to;
+        try {
+            from = queryParameters.containsKey("from") ? Long.parseLong(queryParameters.get("from")) : Long.MIN_VALUE;
+            to = queryParameters.containsKey("to") ? Long.parseLong(queryParameters.get("to")) : Long.MAX_VALUE;
+        } catch (NumberFormatException e) {
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+            return;
+        }
+
+        JSONObject history = stationHistory.query(queryParameters.get("id"), from, to);
+        if (history == null) {
+            HttpMessage.start("HTTP/1.1 404 Not Found").send(output);
+            return;
+        }
+
+        String prettyPrintedJson = history.toString(4);
+        HttpMessage.start("HTTP/1.1 200 OK")
+                   .header("Content-Type", "application/json")
+                   .body(prettyPrintedJson)
+                   .send(output);
+    }
+
+    // Handle GET /stats and report the size of the stored data
+    private void handleStatsRequest(OutputStream output) throws IOException {
+        long stations = weatherStore.size();
+        long storedBytes = weatherStore.estimatedBytes();
 
-        // Read and log headers from the request
-        System.out.println("Reading PUT request headers :");
-        while (!(line = input.readLine()).isEmpty()) {
-            System.out.println(line);
-            if (line.startsWith("Content-Length:")) {
-                contentLength = Integer.parseInt(line.split(":")[1].trim()); // Extracting content length
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("feed", feedName);
+        statsJson.put("feeds", feeds.size());
+        statsJson.put("store", weatherStore.name());
+        statsJson.put("stations", stations);
+        statsJson.put("estimated_bytes_per_station", stations == 0 ? 0 : storedBytes / stations);
+        JSONObject dictionarySizes = new JSONObject();
+        for (int i = 0; i < WeatherFields.DICTIONARY_FIELDS.length; i++) {
+            dictionarySizes.put(WeatherFields.DICTIONARY_FIELDS[i], CompactWeatherRecord.DICTIONARIES[i].size());
+        }
+        statsJson.put("dictionary_sizes", dictionarySizes);
+        statsJson.put("history_stations", stationHistory.stationCount());
+        statsJson.put("history_budget_bytes", stationHistory.budgetBytes());
+        statsJson.put("indexed_stations", spatialIndex.size());
+        JSONObject admissionJson = new JSONObject();
+        admissionJson.put("get", getAdmission.toJson());
+        admissionJson.put("put", putAdmission.toJson());
+        statsJson.put("admission", admissionJson);
+        statsJson.put("put_rate_limit", putRateLimiter.toJson());
+        statsJson.put("active_connections", connectionPool.getActiveCount());
+        statsJson.put("queued_connections", connectionPool.getQueue().size());
+
+        String prettyPrintedJson = statsJson.toString(4);
+        HttpMessage.start("HTTP/1.1 200 OK")
+                   .header("Content-Type", "application/json")
+                   .body(prettyPrintedJson)
+                   .send(output);
+    }
+
+    // Handle PUT /admin/limits?put_rate=..&put_burst=..&put_concurrency=..&put_queue=..&get_concurrency=..&get_queue=..&queue_timeout_ms=..
+    // put_rate and put_burst tune this feed's rate limit. The admission limits are shared by every feed in the
+    // process, so they can only be changed outside the feed namespace (sharedLimits), /feeds/<name>/admin/limits
+    // answers 400 for them. Only accepted from the local machine, responds with the limits now in effect.
+    private void handleLimitsRequest(Map<String, String> queryParameters, boolean sharedLimits, InetAddress clientAddress,
+                                     OutputStream output) throws IOException {
+        if (!clientAddress.isLoopbackAddress()) {
+            HttpMessage.start("HTTP/1.1 403 Forbidden").send(output);
+            return;
+        }
+        try {
+            // Parameters that are left out keep their current value, a misspelt one is rejected rather than ignored
+            for (String parameter : queryParameters.keySet()) {
+                if (parameter.equals("put_rate") || parameter.equals("put_burst")) {
+                    continue;
+                }
+                if (!sharedLimits) {
+                    throw new IllegalArgumentException("Shared limit " + parameter + " cannot be changed for one feed");
+                }
+                if (!SHARED_LIMIT_PARAMETERS.contains(parameter)) {
+                    throw new IllegalArgumentException("Unknown limit " + parameter);
+                }
             }
+            double rate = Double.parseDouble(queryParameters.getOrDefault("put_rate", String.valueOf(putRateLimiter.getRatePerSecond())));
+            double burst = Double.parseDouble(queryParameters.getOrDefault("put_burst", String.valueOf(putRateLimiter.getBurst())));
+            putRateLimiter.setLimits(rate, burst);
+
+            if (sharedLimits) {
+                int putConcurrency = Integer.parseInt(queryParameters.getOrDefault("put_concurrency", String.valueOf(putAdmission.getMaxConcurrent())));
+                int putQueue = Integer.parseInt(queryParameters.getOrDefault("put_queue", String.valueOf(putAdmission.getMaxQueued())));
+                int getConcurrency = Integer.parseInt(queryParameters.getOrDefault("get_concurrency", String.valueOf(getAdmission.getMaxConcurrent())));
+                int getQueue = Integer.parseInt(queryParameters.getOrDefault("get_queue", String.valueOf(getAdmission.getMaxQueued())));
+                long queueTimeoutMs = Long.parseLong(queryParameters.getOrDefault("queue_timeout_ms", String.valueOf(putAdmission.getQueueTimeoutMs())));
+
+                putAdmission.setLimits(putConcurrency, putQueue, queueTimeoutMs);
+                getAdmission.setLimits(getConcurrency, getQueue, queueTimeoutMs);
+            }
+        } catch (IllegalArgumentException e) {
+            // Also covers NumberFormatException
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+            return;
         }
+        System.out.println("Limits changed for feed " + feedName + ": " + queryParameters);
+
+        JSONObject limitsJson = new JSONObject();
+        limitsJson.put("put_rate_limit", putRateLimiter.toJson());
+        limitsJson.put("put", putAdmission.toJson());
+        limitsJson.put("get", getAdmission.toJson());
+        String prettyPrintedJson = limitsJson.toString(4);
+        HttpMessage.start("HTTP/1.1 200 OK")
+                   .header("Content-Type", "application/json")
+                   .body(prettyPrintedJson)
+                   .send(output);
+    }
+
+    // Handle GET /aggregates?by=state&window=20s and return min/max/avg of the aggregated fields per state.
+    // Without a window every current record is aggregated, a window longer than the expiry time is rejected.
+    private void handleAggregatesRequest(Map<String, String> queryParameters, OutputStream output) throws IOException {
+        lamportClock.incrementAndGet();  // Increment lamport clock
 
-        // Respond 400 Bad Request if data is not provided
-        if (contentLength == 0) {
-            System.out.println("Error: Content-Length is 0. No data provided.");
-            output.println("HTTP/1.1 400 Bad Request");
+        // Only grouping by state is maintained
+        String groupBy = queryParameters.getOrDefault("by", "state");
+        long windowMs;
+        try {
+            String window = queryParameters.get("window");
+            windowMs = window == null ? stateAggregates.getMaxWindowMs() : StateAggregates.parseWindow(window);
+        } catch (NumberFormatException e) {
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+            return;
+        }
+        if (!groupBy.equals("state") || windowMs > stateAggregates.getMaxWindowMs()) {
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
             return;
         }
 
+        JSONObject aggregatesJson = new JSONObject();
+        aggregatesJson.put("by", groupBy);
+        aggregatesJson.put("window_ms", windowMs);
+        aggregatesJson.put("groups", stateAggregates.query(System.currentTimeMillis(), windowMs));
+
+        String prettyPrintedJson = aggregatesJson.toString(4);
+        HttpMessage.start("HTTP/1.1 200 OK")
+                   .header("Content-Type", "application/json")
+                   .body(prettyPrintedJson)
+                   .send(output);
+    }
+
+    // Path of a request line without the query string, e.g. "/weather.json"
+    static String requestPath(String requestLine) {
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            return "";
+        }
+        int queryStart = parts[1].indexOf('?');
+        return queryStart < 0 ? parts[1] : parts[1].substring(0, queryStart);
+    }
+
+    // Parse the query string of a request line, e.g. "GET /weather.json?id=IDS60901 HTTP/1.1"
+    static Map<String, String> parseQueryParameters(String requestLine) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || parts[1].indexOf('?') < 0) {
+            return parameters;
+        }
+        String query = parts[1].substring(parts[1].indexOf('?') + 1);
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            if (separator > 0) {
+                parameters.put(URLDecoder.decode(pair.substring(0, separator), "UTF-8"),
+                               URLDecoder.decode(pair.substring(separator + 1), "UTF-8"));
+            }
+        }
+        return parameters;
+    }
+
+    // handlePutRequest() method to Handle PUT requests and store weather data
+    private void handlePutRequest(InputStream input, OutputStream output, String clientAddress) throws IOException, InterruptedException {
+        lamportClock.incrementAndGet();  // Increment lamport clock
+
+        // Read and log headers from the request, names are matched case-insensitively
+        Map<String, String> requestHeaders = HttpMessage.readHeaders(input);
+        System.out.println("Reading PUT request headers : " + requestHeaders);
+        int contentLength;
+        try {
+            contentLength = Integer.parseInt(requestHeaders.getOrDefault("Content-Length", "0")); // Extracting content length
+        } catch (NumberFormatException e) {
+            contentLength = 0;
+        }
+        // Rate limits apply per content server id of the client address, or the address alone
+        String sourceId = requestHeaders.get("Content-Server-Id");
+
+        // Respond 400 Bad Request if data is not provided (a missing or invalid Content-Length counts as 0)
+        if (contentLength <= 0) {
+            System.out.println("Error: Content-Length is " + contentLength + ". No data provided.");
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+            return;
+        }
+
+        // A body over the limit is refused with 413 before anything is allocated for it or it is read
+        if (contentLength > HttpMessage.MAX_BODY_BYTES) {
+            throw new HttpMessage.TooLargeException("HTTP/1.1 413 Payload Too Large",
+                                                    "Content-Length " + contentLength + " is over " + HttpMessage.MAX_BODY_BYTES + " bytes");
+        }
+
+        // Over the rate of this source: skip the body and respond 429
+        long waitMs = putRateLimiter.tryAcquire(clientAddress, sourceId, System.currentTimeMillis());
+        if (waitMs > 0) {
+            System.out.println("Rate limit exceeded for " + clientAddress + (sourceId != null ? " " + sourceId : ""));
+            HttpMessage.skipBody(input, contentLength);
+            respondTooManyRequests(output, waitMs);
+            return;
+        }
+        // Wait for a PUT turn or respond 503
+        if (!putAdmission.tryAdmit()) {
+            HttpMessage.skipBody(input, contentLength);
+            respondUnavailable(output);
+            return;
+        }
+        try {
+            storePutBody(input, output, contentLength);
+        } finally {
+            putAdmission.release();
+        }
+    }
+
+    // Read the PUT body and store the weather data
+    private void storePutBody(InputStream input, OutputStream output, int contentLength) throws IOException {
         // Display the received content length
         System.out.println("Content-Length: " + contentLength);
 
-        // Depending on the content length, read the request's body weather data
-        char[] body = new char[contentLength];
-        input.read(body, 0, contentLength);
-        String receivedJsonString = new String(body);
+        // Depending on the content length, read the request's body weather data (Content-Length counts bytes)
+        String receivedJsonString;
+        try {
+            receivedJsonString = new String(HttpMessage.readBody(input, contentLength), StandardCharsets.UTF_8);
+        } catch (EOFException e) {
+            System.out.println("Error: body shorter than Content-Length " + contentLength);
+            HttpMessage.start("HTTP/1.1 400 Bad Request").send(output);
+            return;
+        }
 
         // Record the JSON string you received for Debugging
         System.out.println("Received JSON body:\n" + receivedJsonString);
@@ -139,53 +701,156 @@ public class AggregationServer {
             String id = weatherJson.getString("id");
 
             // Store the weather data with time
-            weatherDataMap.put(id, new WeatherRecord(weatherJson, System.currentTimeMillis())); 
+            storeWeatherData(id, weatherJson);
             System.out.println("Weather data stored for ID: " + id);
 
             // Respond with success after storing weather data
-            output.println("HTTP/1.1 201 Created");
+            HttpMessage.start("HTTP/1.1 201 Created").send(output);
         } catch (Exception e) {
             System.err.println("Error processing PUT request: " + e.getMessage());
             e.printStackTrace();
             // If failure then respond with 500
-            output.println("HTTP/1.1 500 Internal Server Error");
+            HttpMessage.start("HTTP/1.1 500 Internal Server Error").send(output);
+        }
+    }
+
+    // Handle a binary ingest stream: many length-prefixed records on one connection, one summary reply at the end
+    // The preamble has already been read to find the feed
+    private void handleBinaryPutStream(DataInputStream input, DataOutputStream output, String clientAddress)
+            throws IOException, InterruptedException {
+        // The first batch takes a token like any other; a refused stream is answered before any frame is sent
+        // and closed, so it does not hold a worker
+        long waitMs = putRateLimiter.tryAcquire(clientAddress, null, System.currentTimeMillis());
+        if (waitMs > 0 || !putAdmission.tryAdmit()) {
+            System.out.println("Binary PUT stream from " + clientAddress + " refused");
+            BinaryWeatherProtocol.writeRefused(output, retryAfterSeconds(waitMs));
+            return;
+        }
+        try {
+            BinaryWeatherProtocol.writeAdmitted(output, BINARY_FRAMES_PER_TOKEN);
+            storeBinaryFrames(input, output, clientAddress);
+        } finally {
+            putAdmission.release();
         }
     }
 
-    // Cleanup task to remove expired weather data
-    private static void initiateDataCleanupTask() {
-        ScheduledExecutorService cleanupScheduler = Executors.newScheduledThreadPool(1);
-        cleanupScheduler.scheduleAtFixedRate(() -> {
-            long currentTime = System.currentTimeMillis();
+    // Store the frames of an admitted binary stream. Every further batch is charged to the source's token bucket,
+    // and a stream that runs out of tokens or reaches its frame or time cap is ended with a refusal and its summary.
+    private void storeBinaryFrames(DataInputStream input, DataOutputStream output, String clientAddress) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        int accepted = 0;
+        int rejected = 0;
+        int framesInBatch = 0;
+        BinaryWeatherProtocol.Frame frame;
+        while ((frame = BinaryWeatherProtocol.readFrame(input)) != null) {
+            // Merge the sender's clock into ours for every received record
+            final long receivedClock = frame.lamportClock;
+            lamportClock.updateAndGet(current -> Math.max(current, receivedClock) + 1);
+            try {
+                storeWeatherData(frame.stationId, frame.toJson());
+                accepted++;
+            } catch (Exception e) {
+                System.err.println("Error storing binary record " + frame.stationId + ": " + e.getMessage());
+                rejected++;
+            }
+            if (++framesInBatch < BINARY_FRAMES_PER_TOKEN) {
+                continue;
+            }
 
-            // Remove entries where data has expired --> older than DATA_EXPIRY_TIME_MS
-            weatherDataMap.entrySet().removeIf(entry -> {
-                boolean shouldRemove = (currentTime - entry.getValue().getTimestamp()) > DATA_EXPIRY_TIME_MS;
-                if (shouldRemove) {
-                    System.out.println("Removing expired data with ID: " + entry.getKey());
-                }
-                return shouldRemove;
-            });
-        }, 0, 5, TimeUnit.SECONDS); // Every five seconds, clean up
+            // End of a batch: the client waits for the next grant
+            framesInBatch = 0;
+            long now = System.currentTimeMillis();
+            long waitMs;
+            if (accepted + rejected >= BINARY_MAX_FRAMES || now - startedAt >= BINARY_MAX_STREAM_MS) {
+                // Long enough, let other streams have the slot
+                waitMs = 1;
+            } else {
+                waitMs = putRateLimiter.tryAcquire(clientAddress, null, now);
+            }
+            if (waitMs > 0) {
+                System.out.println("Binary PUT stream from " + clientAddress + " ended after " + (accepted + rejected) + " records");
+                BinaryWeatherProtocol.writeRefused(output, retryAfterSeconds(waitMs));
+                writeBinarySummary(output, accepted, rejected);
+                return;
+            }
+            BinaryWeatherProtocol.writeAdmitted(output, BINARY_FRAMES_PER_TOKEN);
+        }
+        System.out.println("Binary PUT stream stored " + accepted + " records, rejected " + rejected);
+        writeBinarySummary(output, accepted, rejected);
+    }
+
+    // Summary reply: accepted count, rejected count and our Lamport clock
+    private void writeBinarySummary(DataOutputStream output, int accepted, int rejected) throws IOException {
+        output.writeInt(accepted);
+        output.writeInt(rejected);
+        output.writeLong(lamportClock.get());
+        output.flush();
+    }
+
+    // Store the weather data with the time it was received
+    private void storeWeatherData(String id, JSONObject weatherJson) {
+        long receivedTime = System.currentTimeMillis();
+        // Numbers are parsed and repeated strings shared once here, everything below works on the compact record
+        CompactWeatherRecord compactRecord = CompactWeatherRecord.fromJson(weatherJson);
+        double[] numericValues = compactRecord.numericValues();
+        weatherStore.put(id, compactRecord, receivedTime);
+        stationHistory.record(id, receivedTime, numericValues);
+        stateAggregates.record(id, compactRecord.getDictionaryValue(WeatherFields.STATE_INDEX), receivedTime, numericValues);
+        spatialIndex.update(id, numericValues[WeatherFields.LAT_INDEX], numericValues[WeatherFields.LON_INDEX], receivedTime);
+        dataVersion.incrementAndGet();
+    }
+
+    // Single daemon thread shared by the expiry of all feeds
+    private static ScheduledExecutorService createExpiryScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "AggregationServer-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Cleanup task to remove expired weather data, run periodically by the shared scheduler
+    private void removeExpiredData() {
+        long currentTime = System.currentTimeMillis();
+
+        // Remove entries where data has expired --> older than DATA_EXPIRY_TIME_MS
+        weatherStore.removeExpired(currentTime - DATA_EXPIRY_TIME_MS, (id, timestamp) -> {
+            System.out.println("Removing expired data with ID: " + id + " from feed " + feedName);
+            spatialIndex.remove(id, timestamp);
+            stateAggregates.remove(id, timestamp);
+            dataVersion.incrementAndGet();
+        });
+
+        // Drop history samples older than the retention time
+        stationHistory.evictExpired(currentTime);
+        // Clear aggregate buckets that no window can reach any more
+        stateAggregates.evictExpired(currentTime);
+        // Forget rate limit buckets of sources that went quiet
+        putRateLimiter.evictIdle(currentTime);
     }
     
 
 
     // Class to represent weather data
     static class WeatherRecord { 
-        // JSON object to store weather data
-        private final JSONObject weatherJson;
+        // Compact form of the received JSON weather data
+        private final CompactWeatherRecord compactRecord;
         // timestamp when it received data
         private final long timestamp;
 
-        public WeatherRecord(JSONObject weatherJson, long timestamp) {
-            this.weatherJson = weatherJson;
+        public WeatherRecord(CompactWeatherRecord compactRecord, long timestamp) {
+            this.compactRecord = compactRecord;
             this.timestamp = timestamp;
         }
 
-        // Get the stored weather data
+        // Get the stored weather data, rebuilt as the JSON that was received
         public JSONObject getWeatherData() {
-            return weatherJson;
+            return compactRecord.toJson();
+        }
+
+        // Get the compact form of the stored data
+        public CompactWeatherRecord getCompactRecord() {
+            return compactRecord;
         }
 
         // Get the timestamp of stored data
@@ -1,43 +1,42 @@
 import static org.junit.Assert.*; // Provides assertion methods of J Unit Testing
 import java.io.*; // Provides class for input output operations
 import java.net.*; // Provides classes for socket networking
+import java.util.ArrayList; // Collects expired station ids
+import java.util.Arrays; // To fill record values with NaN
+import java.util.LinkedHashMap; // Weather records for the binary stream
+import java.util.List; // Collects expired station ids
+import org.json.JSONObject; // To parse JSON responses
 import org.junit.After; // Method for cleanup after test cases
 import org.junit.Before;
 import org.junit.Test; // Import test methods
 import java.util.concurrent.ExecutorService; // To manage multiple threads
 import java.util.concurrent.Executors; // To create thread pools
+import java.util.concurrent.atomic.AtomicBoolean; // Stops the reader thread of the off-heap test
+import java.util.concurrent.atomic.AtomicInteger; // Counts bad reads seen by the reader thread
 
 public class AggregationServerTest {
-    private static final int TEST_PORT = 4567; // server port - 4567
-    private Thread serverThread; // Thread used to run AggregationServer
+    private AggregationServer server; // Default feed of the test, a fresh one for every test
+    private int serverPort; // Free port the server was bound to
 
     @Before
     public void setUp() throws Exception {
-        // Run AggregationServer in new thread
-        serverThread = new Thread(() -> {
-            try {
-                AggregationServer.main(new String[]{String.valueOf(TEST_PORT)});  // Start server on specific port
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        });
-        serverThread.start();
-        Thread.sleep(500);  //Small delay to check server starts
+        // Start the server in this process on any free port, listen() returns once the port is bound
+        server = new AggregationServer(AggregationServer.DEFAULT_FEED);
+        server.start();
+        serverPort = server.listen(0);
     }
 
     @After
     public void tearDown() throws Exception {
-        // If server thread is running then stop it
-        if (serverThread != null && serverThread.isAlive()) {
-            serverThread.interrupt();
-        }
+        // Close the port and unregister the feed, so the next test can start its own
+        server.stop();
     }
 
     // Test valid PUT request to store weather data
     @Test
     public void testValidPutRequest() throws Exception {
         // Start socket connection
-        Socket socket = new Socket("localhost", TEST_PORT);
+        Socket socket = new Socket("localhost", serverPort);
         PrintWriter writer = new PrintWriter(socket.getOutputStream(), true); // Send a request
         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream())); // Read a request
 
@@ -61,7 +60,7 @@ public class AggregationServerTest {
     @Test
     public void testInvalidPutRequest() throws Exception {
         // Open socket connection
-        Socket socket = new Socket("localhost", TEST_PORT);
+        Socket socket = new Socket("localhost", serverPort);
         PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
@@ -84,7 +83,7 @@ public class AggregationServerTest {
         // send a PUT request to store weather data
         testValidPutRequest();
 
-        Socket socket = new Socket("localhost", TEST_PORT);
+        Socket socket = new Socket("localhost", serverPort);
         PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
@@ -110,7 +109,7 @@ public class AggregationServerTest {
     // Edge Case : Test for empty PUT request (invalid, no content)
     @Test
     public void testPutRequestWithEmptyBody() throws Exception {
-        Socket socket = new Socket("localhost", TEST_PORT);
+        Socket socket = new Socket("localhost", serverPort);
         PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
         BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
@@ -126,13 +125,29 @@ public class AggregationServerTest {
         socket.close(); // Close the socket
     }
 
+    // Edge Case : Header names of a PUT are case-insensitive
+    @Test
+    public void testPutHeadersCaseInsensitive() throws Exception {
+        String jsonBody = "{\"id\": \"IDS60905\", \"state\": \"SA\", \"air_temp\": \"18.0\"}";
+        try (Socket socket = new Socket("localhost", serverPort)) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writer.println("PUT /weather.json HTTP/1.1");
+            writer.println("host: localhost");
+            writer.println("content-length: " + jsonBody.length());
+            writer.println();
+            writer.println(jsonBody);
+            assertEquals("HTTP/1.1 201 Created", reader.readLine());
+        }
+    }
+
     // Edge Case : Test sending the same PUT request two times
     @Test
     public void testDuplicatePutRequest() throws Exception {
         String jsonBody = "{\"id\": \"IDS60904\", \"name\": \"Brisbane\", \"state\": \"QLD\", \"air_temp\": \"25.5\"}";
 
         // First PUT request
-        Socket socket1 = new Socket("localhost", TEST_PORT);
+        Socket socket1 = new Socket("localhost", serverPort);
         PrintWriter writer1 = new PrintWriter(socket1.getOutputStream(), true);
         BufferedReader reader1 = new BufferedReader(new InputStreamReader(socket1.getInputStream()));
 
@@ -148,7 +163,7 @@ public class AggregationServerTest {
         socket1.close();
 
         // Second PUT request(same data)
-        Socket socket2 = new Socket("localhost", TEST_PORT);
+        Socket socket2 = new Socket("localhost", serverPort);
         PrintWriter writer2 = new PrintWriter(socket2.getOutputStream(), true);
         BufferedReader reader2 = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
 
@@ -174,7 +189,7 @@ public class AggregationServerTest {
             try {
                 // Each client sends a unique PUT request
                 String clientData = "{\"id\": \"IDS6090" + Thread.currentThread().getId() + "\", \"name\": \"ClientCity\", \"state\": \"ST\", \"air_temp\": \"30.0\"}";
-                Socket socket = new Socket("localhost", TEST_PORT);
+                Socket socket = new Socket("localhost", serverPort);
                 PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
                 BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
@@ -190,7 +205,7 @@ public class AggregationServerTest {
                 socket.close();
 
                 // Immediately after, send a GET request
-                Socket getSocket = new Socket("localhost", TEST_PORT);
+                Socket getSocket = new Socket("localhost", serverPort);
                 PrintWriter getWriter = new PrintWriter(getSocket.getOutputStream(), true);
                 BufferedReader getReader = new BufferedReader(new InputStreamReader(getSocket.getInputStream()));
 
@@ -223,4 +238,604 @@ public class AggregationServerTest {
             Thread.sleep(500); // Wait for all task
         }
     }
+
+    // Test binary ingest stream with several records on one connection
+    @Test
+    public void testBinaryPutStream() throws Exception {
+        Socket socket = new Socket("localhost", serverPort);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+
+        BinaryWeatherProtocol.writePreamble(out, null);
+        out.flush();
+        assertTrue(BinaryWeatherProtocol.readGrant(in).isAdmitted());  // Admitted before any record is sent
+        for (int i = 1; i <= 2; i++) {
+            LinkedHashMap<String, String> weatherData = new LinkedHashMap<>();
+            weatherData.put("id", "IDSBIN" + i);
+            weatherData.put("state", "SA");
+            weatherData.put("air_temp", "13.3");
+            weatherData.put("rel_hum", "60");
+            BinaryWeatherProtocol.writeFrame(out, i, weatherData);
+        }
+        BinaryWeatherProtocol.writeEndOfStream(out);
+        out.flush();
+
+        // Reading summary reply
+        assertEquals(2, in.readInt());  // accepted
+        assertEquals(0, in.readInt());  // rejected
+        assertTrue(in.readLong() >= 2);  // Lamport clock merged with the sender's
+        socket.close();
+
+        // Records are visible through the normal JSON GET with their original text values
+        Socket getSocket = new Socket("localhost", serverPort);
+        PrintWriter writer = new PrintWriter(getSocket.getOutputStream(), true);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(getSocket.getInputStream()));
+        writer.println("GET /weather.json HTTP/1.1");
+        writer.println("Host: localhost");
+        writer.println();
+
+        StringBuilder response = new StringBuilder();
+        String responseLine;
+        while ((responseLine = reader.readLine()) != null) {
+            response.append(responseLine).append("\n");
+        }
+        assertTrue(response.toString().contains("\"id\": \"IDSBIN2\""));
+        assertTrue(response.toString().contains("\"air_temp\": \"13.3\""));
+        assertTrue(response.toString().contains("\"rel_hum\": \"60\""));
+        getSocket.close();
+
+        // Every batch of a stream takes a token: with a burst of two the stream is ended after its second batch,
+        // and the next stream is refused as soon as the preamble arrives
+        AggregationServer feed = new AggregationServer("binary-refusal");
+        feed.start();
+        try {
+            int feedPort = feed.listen(0);
+            assertTrue(sendPut("/feeds/binary-refusal/admin/limits?put_rate=0.01&put_burst=2", "", null).startsWith("HTTP/1.1 200 OK"));
+            int[] stream = streamUntilEnded(feedPort);
+            assertEquals(2, stream[0]);  // Batches sent
+            assertEquals(stream[1], stream[2]);  // Every frame sent before the refusal was stored
+            assertTrue(stream[3] >= 1);  // Retry after
+            try (Socket streamSocket = new Socket("localhost", feedPort)) {
+                DataOutputStream streamOut = new DataOutputStream(streamSocket.getOutputStream());
+                BinaryWeatherProtocol.writePreamble(streamOut, null);
+                streamOut.flush();
+                assertFalse(BinaryWeatherProtocol.readGrant(new DataInputStream(streamSocket.getInputStream())).isAdmitted());
+            }
+
+            // With plenty of tokens a stream still hands its slot back after its frame cap
+            assertTrue(sendPut("/feeds/binary-refusal/admin/limits?put_rate=100000&put_burst=100000", "", null).startsWith("HTTP/1.1 200 OK"));
+            stream = streamUntilEnded(feedPort);
+            assertEquals(10000, stream[1]);
+            assertEquals(stream[1], stream[2]);
+            assertEquals(1, stream[3]);
+        } finally {
+            feed.stop();
+        }
+    }
+
+    // Send frames batch by batch until the server ends the stream.
+    // Returns batches sent, frames sent, frames stored and the retry after of the refusal.
+    private static int[] streamUntilEnded(int port) throws IOException {
+        try (Socket streamSocket = new Socket("localhost", port)) {
+            DataOutputStream streamOut = new DataOutputStream(new BufferedOutputStream(streamSocket.getOutputStream()));
+            DataInputStream streamIn = new DataInputStream(streamSocket.getInputStream());
+            BinaryWeatherProtocol.writePreamble(streamOut, null);
+            streamOut.flush();
+            BinaryWeatherProtocol.Grant grant = BinaryWeatherProtocol.readGrant(streamIn);
+            int batches = 0;
+            int sent = 0;
+            while (grant.isAdmitted()) {
+                for (int i = 0; i < grant.frames; i++) {
+                    LinkedHashMap<String, String> weatherData = new LinkedHashMap<>();
+                    weatherData.put("id", "IDSBATCH" + (sent % 50));
+                    weatherData.put("air_temp", "12.5");
+                    BinaryWeatherProtocol.writeFrame(streamOut, ++sent, weatherData);
+                }
+                streamOut.flush();
+                batches++;
+                grant = BinaryWeatherProtocol.readGrant(streamIn);
+            }
+            int stored = streamIn.readInt();
+            streamIn.readInt();
+            return new int[] {batches, sent, stored, grant.retryAfterSeconds};
+        }
+    }
+
+    // Test history range query after two updates of the same station
+    @Test
+    public void testHistoryRangeQuery() throws Exception {
+        long before = System.currentTimeMillis();
+        assertEquals("HTTP/1.1 201 Created", sendPut("{\"id\": \"IDSHIST1\", \"state\": \"SA\", \"air_temp\": \"20.5\"}"));
+        assertEquals("HTTP/1.1 201 Created", sendPut("{\"id\": \"IDSHIST1\", \"state\": \"SA\", \"air_temp\": \"21.5\"}"));
+
+        String response = sendGet("/weather.json?id=IDSHIST1&from=" + before + "&to=" + System.currentTimeMillis());
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(response.contains("20.5"));
+        assertTrue(response.contains("21.5"));
+
+        // Unknown station has no history
+        assertTrue(sendGet("/weather.json?id=IDSNONE").startsWith("HTTP/1.1 404 Not Found"));
+    }
+
+    // Test that history buffers grow on demand and the budget drops the least recently updated station
+    @Test
+    public void testHistoryBudget() throws Exception {
+        double[] sample = new double[WeatherFields.NUMERIC_FIELDS.length];
+        // Room for 100 stations with a small buffer each, far fewer than 100 full buffers
+        StationHistory history = new StationHistory(360, 60000, 100 * StationHistory.bytesPerStation(8));
+        for (int i = 0; i < 100; i++) {
+            history.record("IDSB" + i, 1000 + i, sample);
+        }
+        assertEquals(100, history.stationCount());
+
+        // IDSB0 becomes the most recently updated, so the next new station replaces IDSB1
+        history.record("IDSB0", 2000, sample);
+        history.record("IDSB100", 2001, sample);
+        assertEquals(100, history.stationCount());
+        assertNotNull(history.query("IDSB0", 0, Long.MAX_VALUE));
+        assertNull(history.query("IDSB1", 0, Long.MAX_VALUE));
+
+        // A station with many samples grows its buffer at the expense of the least recently updated ones
+        for (int i = 0; i < 40; i++) {
+            history.record("IDSB0", 3000 + i, sample);
+        }
+        assertEquals(42, history.query("IDSB0", 0, Long.MAX_VALUE).getJSONArray("timestamps").length());
+        assertTrue(history.stationCount() < 100);
+        assertTrue(history.usedBytes() <= 100 * StationHistory.bytesPerStation(8));
+    }
+
+    // Test aggregates per state over a window
+    @Test
+    public void testAggregatesByState() throws Exception {
+        sendPut("{\"id\": \"IDSAGG1\", \"state\": \"TAGG\", \"air_temp\": \"10.0\", \"rel_hum\": \"50\"}");
+        sendPut("{\"id\": \"IDSAGG2\", \"state\": \"TAGG\", \"air_temp\": \"20.0\", \"rel_hum\": \"70\"}");
+
+        String response = sendGet("/aggregates?by=state&window=30s");
+        assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+        JSONObject body = new JSONObject(response.substring(response.indexOf("\n\n") + 2));
+        JSONObject airTemp = body.getJSONObject("groups").getJSONObject("TAGG").getJSONObject("air_temp");
+        assertEquals(2, airTemp.getLong("count"));
+        assertEquals(10.0, airTemp.getDouble("min"), 0.0);
+        assertEquals(20.0, airTemp.getDouble("max"), 0.0);
+        assertEquals(15.0, airTemp.getDouble("avg"), 0.0);
+
+        // Updating a station twice replaces its values instead of counting every update
+        sendPut("{\"id\": \"IDSAGG2\", \"state\": \"TAGG\", \"air_temp\": \"30.0\", \"rel_hum\": \"70\"}");
+        sendPut("{\"id\": \"IDSAGG2\", \"state\": \"TAGG\", \"air_temp\": \"40.0\", \"rel_hum\": \"70\"}");
+        response = sendGet("/aggregates?by=state&window=30s");
+        body = new JSONObject(response.substring(response.indexOf("\n\n") + 2));
+        airTemp = body.getJSONObject("groups").getJSONObject("TAGG").getJSONObject("air_temp");
+        assertEquals(2, airTemp.getLong("count"));
+        assertEquals(10.0, airTemp.getDouble("min"), 0.0);
+        assertEquals(40.0, airTemp.getDouble("max"), 0.0);
+        assertEquals(25.0, airTemp.getDouble("avg"), 0.0);
+
+        // An expired record is taken out, including when it held the group's extreme
+        StateAggregates aggregates = new StateAggregates(30000);
+        long now = System.currentTimeMillis();
+        double[] values = new double[WeatherFields.NUMERIC_FIELDS.length];
+        Arrays.fill(values, Double.NaN);
+        int airTempIndex = WeatherFields.numericIndex("air_temp");
+        values[airTempIndex] = 5.0;
+        aggregates.record("A", "S", now - 2000, values);
+        values[airTempIndex] = 9.0;
+        aggregates.record("B", "S", now - 1000, values);
+        aggregates.remove("B", now - 1000);
+        JSONObject group = aggregates.query(now, 30000).getJSONObject("S").getJSONObject("air_temp");
+        assertEquals(1, group.getLong("count"));
+        assertEquals(5.0, group.getDouble("max"), 0.0);
+        // A station updated after the expired timestamp keeps its record
+        aggregates.remove("A", now - 3000);
+        assertEquals(1, aggregates.query(now, 30000).getJSONObject("S").getJSONObject("air_temp").getLong("count"));
+        aggregates.remove("A", now - 2000);
+        assertFalse(aggregates.query(now, 30000).has("S"));
+
+        // Records expire after 30 seconds, so a longer window is rejected instead of repeating the same answer
+        assertTrue(sendGet("/aggregates?by=state&window=5m").startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(sendGet("/aggregates?by=state").startsWith("HTTP/1.1 200 OK"));
+
+        // Unsupported grouping
+        assertTrue(sendGet("/aggregates?by=cloud").startsWith("HTTP/1.1 400 Bad Request"));
+    }
+
+    // Test nearest-station and bounding-box queries
+    @Test
+    public void testSpatialQueries() throws Exception {
+        sendPut("{\"id\": \"IDSGEO1\", \"lat\": \"-34.9\", \"lon\": \"138.6\"}");   // Adelaide
+        sendPut("{\"id\": \"IDSGEO2\", \"lat\": \"-35.0\", \"lon\": \"138.5\"}");   // Near Adelaide
+        sendPut("{\"id\": \"IDSGEO3\", \"lat\": \"-27.5\", \"lon\": \"153.0\"}");   // Brisbane
+
+        String nearest = sendGet("/weather.json?near=-34.9,138.6&k=2");
+        assertTrue(nearest.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(nearest.contains("\"IDSGEO1\""));
+        assertTrue(nearest.contains("\"IDSGEO2\""));
+        assertFalse(nearest.contains("\"IDSGEO3\""));
+        assertTrue(nearest.indexOf("\"IDSGEO1\"") < nearest.indexOf("\"IDSGEO2\""));  // Nearest first
+
+        String box = sendGet("/weather.json?bbox=-30,150,-25,155");
+        assertTrue(box.contains("\"IDSGEO3\""));
+        assertFalse(box.contains("\"IDSGEO1\""));
+
+        // A box covering the whole globe (both ends at the antimeridian) contains every station
+        String world = sendGet("/weather.json?bbox=-90,-180,90,180");
+        assertTrue(world.contains("\"IDSGEO1\"") && world.contains("\"IDSGEO2\"") && world.contains("\"IDSGEO3\""));
+        String eastEdge = sendGet("/weather.json?bbox=-40,138,-20,180");
+        assertTrue(eastEdge.contains("\"IDSGEO1\"") && eastEdge.contains("\"IDSGEO3\""));
+
+        // Same on an index with more stations than cells, so the grid is used instead of a scan
+        SpatialIndex index = new SpatialIndex(90);
+        for (int i = 0; i < 40; i++) {
+            index.update("IDSGRID" + i, -80 + 4 * i, -180 + 9 * i, 1);
+        }
+        index.update("IDSGRID180", 10, 180, 1);
+        assertEquals(41, index.withinBox(-90, -180, 90, 180).size());
+        assertTrue(index.withinBox(0, 170, 20, 180).contains("IDSGRID180"));
+
+        assertTrue(sendGet("/weather.json?near=abc").startsWith("HTTP/1.1 400 Bad Request"));
+    }
+
+    // Test that compact storage gives back exactly the JSON values that were received
+    @Test
+    public void testStoredValuesUnchanged() throws Exception {
+        String jsonBody = "{\"id\": \"IDSCMP1\", \"state\": \"SA\", \"cloud\": \"Partly cloudy\", \"air_temp\": \"13.30\", "
+                        + "\"rel_hum\": \"60\", \"press\": 1023.9, \"wind_spd_kt\": 8, \"name\": \"Adelaide\"}";
+        assertEquals("HTTP/1.1 201 Created", sendPut(jsonBody));
+
+        String response = sendGet("/weather.json");
+        JSONObject stored = new JSONObject(response.substring(response.indexOf("\n\n") + 2)).getJSONObject("IDSCMP1");
+        JSONObject expected = new JSONObject(jsonBody);
+        assertEquals(expected.keySet(), stored.keySet());
+        for (String field : expected.keySet()) {
+            assertEquals(JSONObject.valueToString(expected.get(field)), JSONObject.valueToString(stored.get(field)));
+        }
+
+        // Memory footprint is reported
+        String stats = sendGet("/stats");
+        JSONObject statsJson = new JSONObject(stats.substring(stats.indexOf("\n\n") + 2));
+        assertTrue(statsJson.getLong("stations") >= 1);
+        assertTrue(statsJson.getLong("estimated_bytes_per_station") > 0);
+    }
+
+    // Test the off-heap store: overwrite, lookup, growth, overflow records and expiry
+    @Test
+    public void testOffHeapWeatherStore() throws Exception {
+        OffHeapWeatherStore store = new OffHeapWeatherStore();
+        int stations = 20000;  // More than one segment holds, so the table has to grow
+        store.put("IDS0", CompactWeatherRecord.fromJson(new JSONObject("{\"id\": \"IDS0\", \"state\": \"SA\", \"air_temp\": \"0.5\", \"name\": \"Station 0\"}")), 1000);
+        // A reader running while the table grows always sees the complete record
+        AtomicBoolean growing = new AtomicBoolean(true);
+        AtomicInteger badReads = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (growing.get()) {
+                AggregationServer.WeatherRecord record = store.get("IDS0");
+                if (record == null || !"Station 0".equals(record.getWeatherData().getString("name"))) {
+                    badReads.incrementAndGet();
+                }
+            }
+        });
+        reader.start();
+        for (int i = 1; i < stations; i++) {
+            JSONObject weatherJson = new JSONObject("{\"id\": \"IDS" + i + "\", \"state\": \"SA\", \"air_temp\": \"" + i + ".5\", \"name\": \"Station " + i + "\"}");
+            store.put("IDS" + i, CompactWeatherRecord.fromJson(weatherJson), i < stations / 2 ? 1000 : 2000);
+        }
+        growing.set(false);
+        reader.join();
+        assertEquals(0, badReads.get());
+        // Overwrite an existing station and store one whose id does not fit a slot
+        store.put("IDS7", CompactWeatherRecord.fromJson(new JSONObject("{\"id\": \"IDS7\", \"air_temp\": \"99.9\"}")), 2000);
+        String longId = "IDS-with-an-id-that-is-longer-than-a-slot-can-hold-0000000000";
+        store.put(longId, CompactWeatherRecord.fromJson(new JSONObject("{\"id\": \"" + longId + "\"}")), 2000);
+
+        assertEquals(stations + 1, store.size());
+        assertEquals("12.5", store.get("IDS12").getWeatherData().getString("air_temp"));
+        assertEquals("Station 12", store.get("IDS12").getWeatherData().getString("name"));
+        assertEquals("99.9", store.get("IDS7").getWeatherData().getString("air_temp"));
+        assertFalse(store.get("IDS7").getWeatherData().has("name"));
+        assertNotNull(store.get(longId));
+        assertNull(store.get("IDSNONE"));
+        assertEquals(stations + 1, store.values().size());
+
+        // Only the older half expires (IDS7 was refreshed)
+        List<String> removed = new ArrayList<>();
+        List<String> visibleWhenReported = new ArrayList<>();
+        store.removeExpired(1500, (id, timestamp) -> {
+            removed.add(id);
+            if (store.get(id) != null) {
+                visibleWhenReported.add(id);
+            }
+        });
+        assertEquals(stations / 2 - 1, removed.size());
+        assertTrue(visibleWhenReported.isEmpty());  // Reported only once the record is gone
+        assertNull(store.get("IDS12"));
+        assertNotNull(store.get("IDS7"));
+        assertEquals(stations / 2 + 2, store.size());
+
+        // The heap store also reports a removal only after it happened
+        HeapWeatherStore heapStore = new HeapWeatherStore();
+        heapStore.put("IDS1", CompactWeatherRecord.fromJson(new JSONObject("{\"id\": \"IDS1\"}")), 1000);
+        heapStore.put("IDS2", CompactWeatherRecord.fromJson(new JSONObject("{\"id\": \"IDS2\"}")), 2000);
+        List<String> heapRemoved = new ArrayList<>();
+        heapStore.removeExpired(1500, (id, timestamp) -> {
+            assertNull(heapStore.get(id));
+            heapRemoved.add(id);
+        });
+        assertEquals(1, heapRemoved.size());
+        assertEquals(1, heapStore.size());
+    }
+
+    // Test per-source rate limiting and runtime tuning of the limits
+    @Test
+    public void testPutRateLimit() throws Exception {
+        String jsonBody = "{\"id\": \"IDSRATE1\", \"state\": \"SA\"}";
+        // The default burst lets at least 100 requests of one content server through, then it is limited
+        int created = 0;
+        String response = sendPut(jsonBody, "flooding-server");
+        while (response.startsWith("HTTP/1.1 201 Created") && created < 10000) {
+            created++;
+            response = sendPut(jsonBody, "flooding-server");
+        }
+        assertTrue(created >= 100);
+        assertTrue(response.startsWith("HTTP/1.1 429 Too Many Requests"));
+        assertTrue(response.contains("Retry-After: 1"));
+
+        // Other content servers are not affected
+        assertTrue(sendPut(jsonBody, "quiet-server").startsWith("HTTP/1.1 201 Created"));
+
+        // New ids beyond the cap of one address share the address's bucket instead of getting fresh tokens
+        RateLimiter limiter = new RateLimiter(1, 1, 2);
+        assertEquals(0, limiter.tryAcquire("10.0.0.1", "id-a", 0));
+        assertEquals(0, limiter.tryAcquire("10.0.0.1", "id-b", 0));
+        assertEquals(0, limiter.tryAcquire("10.0.0.1", "id-c", 0));  // Charged to the address
+        assertTrue(limiter.tryAcquire("10.0.0.1", "id-d", 0) > 0);
+        assertTrue(limiter.tryAcquire("10.0.0.1", null, 0) > 0);
+        assertEquals(0, limiter.tryAcquire("10.0.0.2", "id-d", 0));  // Other addresses are not affected
+        assertEquals(4, limiter.toJson().getInt("sources"));  // Two ids and the shared bucket of the first address, one id of the second
+
+        // Limits can be changed at runtime from the local machine
+        String limits = sendPut("/admin/limits?get_concurrency=32", "", null);
+        assertTrue(limits.startsWith("HTTP/1.1 200 OK"));
+        assertTrue(sendPut("/admin/limits?put_rate=abc", "", null).startsWith("HTTP/1.1 400 Bad Request"));
+        // A misspelt limit is rejected, and nothing else in the request is applied
+        assertTrue(sendPut("/admin/limits?get_concurrency=4&put_concurency=4", "", null).startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(sendPut("/admin/limits?put_rate=10", "", null).contains("\"max_concurrent\": 32"));
+
+        String stats = sendGet("/stats");
+        JSONObject statsJson = new JSONObject(stats.substring(stats.indexOf("\n\n") + 2));
+        assertTrue(statsJson.getJSONObject("put_rate_limit").getLong("limited") >= 1);
+        assertTrue(statsJson.getJSONObject("admission").getJSONObject("get").getLong("admitted") >= 1);
+    }
+
+    // Test that Content-Length counts encoded bytes and each response arrives whole
+    @Test
+    public void testUtf8ContentLength() throws Exception {
+        String jsonBody = "{\"id\": \"IDS60950\", \"name\": \"Ng\u0101yirdapira \u00b0C\", \"state\": \"SA\", \"air_temp\": \"21.0\"}";
+        byte[] bodyBytes = jsonBody.getBytes("UTF-8");
+        try (Socket socket = new Socket("localhost", serverPort)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: "
+                       + bodyBytes.length + "\r\n\r\n").getBytes("UTF-8"));
+            out.write(bodyBytes);
+            out.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertEquals("HTTP/1.1 201 Created", reader.readLine());
+        }
+
+        String response = sendGet("/weather.json");
+        assertTrue(response.startsWith("HTTP/1.1 200 OK\n"));
+        String body = response.substring(response.indexOf("\n\n") + 2, response.length() - 1);
+        int contentLength = 0;
+        for (String header : response.split("\n")) {
+            if (header.startsWith("Content-Length:")) {
+                contentLength = Integer.parseInt(header.substring("Content-Length:".length()).trim());
+            }
+        }
+        assertEquals(body.getBytes("UTF-8").length, contentLength);
+        assertTrue(body.contains("Ng\u0101yirdapira \u00b0C"));
+    }
+
+    // Test that oversized request lines, header blocks and bodies are refused before they are read whole
+    @Test
+    public void testRequestSizeLimits() throws Exception {
+        StringBuilder longText = new StringBuilder();
+        while (longText.length() <= HttpMessage.MAX_LINE_BYTES) {
+            longText.append("abcdefghij");
+        }
+        assertTrue(sendGet("/weather.json?id=" + longText).startsWith("HTTP/1.1 400 Bad Request"));
+        assertTrue(sendGet("/weather.json", "X-Long: " + longText).startsWith("HTTP/1.1 431 Request Header Fields Too Large"));
+        String[] headers = new String[HttpMessage.MAX_HEADER_BYTES / 1000 + 1];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = "X-Header-" + i + ": " + longText.substring(0, 1000);
+        }
+        assertTrue(sendGet("/weather.json", headers).startsWith("HTTP/1.1 431 Request Header Fields Too Large"));
+
+        // A body over the limit is answered from its Content-Length, while the client is still sending it
+        try (Socket socket = new Socket("localhost", serverPort)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /weather.json HTTP/1.1\r\nContent-Type: application/json\r\nContent-Length: "
+                       + (HttpMessage.MAX_BODY_BYTES + 1) + "\r\n\r\n").getBytes("UTF-8"));
+            out.write(new byte[64 * 1024]);
+            out.flush();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            assertEquals("HTTP/1.1 413 Payload Too Large", reader.readLine());
+        }
+
+        // Requests within the limits are unaffected
+        assertEquals("HTTP/1.1 201 Created", sendPut("{\"id\": \"IDS60955\", \"state\": \"SA\", \"air_temp\": \"20.0\"}"));
+        assertTrue(sendGet("/weather.json", headers[0]).contains("IDS60955"));
+    }
+
+    // Test ETag revalidation of the full feed: 304 while unchanged, 200 with a new ETag after an update
+    @Test
+    public void testFeedETagRevalidation() throws Exception {
+        assertEquals("HTTP/1.1 201 Created", sendPut("{\"id\": \"IDS60960\", \"state\": \"SA\", \"air_temp\": \"18.0\"}"));
+
+        String etag = headerValue(sendGet("/weather.json"), "ETag");
+        assertNotNull(etag);
+
+        String notModified = sendGet("/weather.json", "If-None-Match: " + etag);
+        assertTrue(notModified.startsWith("HTTP/1.1 304 Not Modified\n"));
+        assertEquals(etag, headerValue(notModified, "ETag"));
+        assertFalse(notModified.contains("IDS60960"));
+
+        assertEquals("HTTP/1.1 201 Created", sendPut("{\"id\": \"IDS60960\", \"state\": \"SA\", \"air_temp\": \"18.5\"}"));
+        String modified = sendGet("/weather.json", "If-None-Match: " + etag);
+        assertTrue(modified.startsWith("HTTP/1.1 200 OK\n"));
+        assertNotEquals(etag, headerValue(modified, "ETag"));
+        assertTrue(modified.contains("18.5"));
+    }
+
+    // Test feeds sharing the process: own data per feed, reachable on their own port or under /feeds/<name>/
+    @Test
+    public void testMultipleFeeds() throws Exception {
+        AggregationServer northFeed = new AggregationServer("north");
+        AggregationServer southFeed = new AggregationServer("south");
+        northFeed.start();
+        southFeed.start();
+        try {
+            int northPort = northFeed.listen(0);
+
+            // PUT to the north feed on its own port, to the south feed by path on the main port
+            try (Socket socket = new Socket("localhost", northPort)) {
+                String jsonBody = "{\"id\": \"IDS70001\", \"state\": \"NT\", \"air_temp\": \"31.0\"}";
+                PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+                writer.println("PUT /weather.json HTTP/1.1");
+                writer.println("Content-Length: " + jsonBody.length());
+                writer.println();
+                writer.println(jsonBody);
+                assertEquals("HTTP/1.1 201 Created", new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine());
+            }
+            assertEquals("HTTP/1.1 201 Created", sendPut("/feeds/south/weather.json",
+                         "{\"id\": \"IDS70002\", \"state\": \"TAS\", \"air_temp\": \"9.0\"}", null).split("\n")[0]);
+
+            String northData = sendGet("/feeds/north/weather.json");
+            assertTrue(northData.contains("IDS70001"));
+            assertFalse(northData.contains("IDS70002"));
+            String southData = sendGet("/feeds/south/weather.json");
+            assertTrue(southData.contains("IDS70002"));
+            assertFalse(southData.contains("IDS70001"));
+            // Neither reaches the default feed of the main port
+            String defaultData = sendGet("/weather.json");
+            assertFalse(defaultData.contains("IDS70001") || defaultData.contains("IDS70002"));
+
+            JSONObject southStats = new JSONObject(sendGet("/feeds/south/stats").split("\n\n", 2)[1]);
+            assertEquals("south", southStats.getString("feed"));
+            assertEquals(1, southStats.getLong("stations"));
+
+            // A binary stream on the main port names its feed in the preamble
+            try (Socket socket = new Socket("localhost", serverPort)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                BinaryWeatherProtocol.writePreamble(out, "north");
+                out.flush();
+                assertTrue(BinaryWeatherProtocol.readGrant(in).isAdmitted());
+                LinkedHashMap<String, String> weatherData = new LinkedHashMap<>();
+                weatherData.put("id", "IDS70003");
+                weatherData.put("state", "NT");
+                BinaryWeatherProtocol.writeFrame(out, 1, weatherData);
+                BinaryWeatherProtocol.writeEndOfStream(out);
+                out.flush();
+                assertEquals(1, in.readInt());
+            }
+            assertTrue(sendGet("/feeds/north/weather.json").contains("IDS70003"));
+            assertFalse(sendGet("/weather.json").contains("IDS70003"));
+            try (Socket socket = new Socket("localhost", serverPort)) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                BinaryWeatherProtocol.writePreamble(out, "nowhere");
+                out.flush();
+                BinaryWeatherProtocol.readGrant(new DataInputStream(socket.getInputStream()));
+                fail("Unknown feed was admitted");
+            } catch (IOException e) {
+                assertEquals("Unknown feed", e.getMessage());
+            }
+
+            // A feed can tune its own rate limit, but not the admission limits shared by every feed
+            assertTrue(sendPut("/feeds/south/admin/limits?put_concurrency=1", "", null).startsWith("HTTP/1.1 400 Bad Request"));
+            String southLimits = sendPut("/feeds/south/admin/limits?put_rate=20", "", null);
+            assertTrue(southLimits.startsWith("HTTP/1.1 200 OK"));
+            assertEquals(20.0, new JSONObject(southLimits.split("\n\n", 2)[1]).getJSONObject("put_rate_limit").getDouble("rate_per_second"), 0.0);
+            JSONObject defaultStats = new JSONObject(sendGet("/stats").split("\n\n", 2)[1]);
+            assertNotEquals(20.0, defaultStats.getJSONObject("put_rate_limit").getDouble("rate_per_second"), 0.0);
+
+            // The history budget of the process is split between the running feeds
+            assertEquals(3, defaultStats.getInt("feeds"));
+            assertEquals(StationHistory.PROCESS_BUDGET_BYTES / 3, defaultStats.getLong("history_budget_bytes"));
+            assertEquals(StationHistory.PROCESS_BUDGET_BYTES / 3, southStats.getLong("history_budget_bytes"));
+        } finally {
+            northFeed.stop();
+            southFeed.stop();
+        }
+        JSONObject defaultStats = new JSONObject(sendGet("/stats").split("\n\n", 2)[1]);
+        assertEquals(StationHistory.PROCESS_BUDGET_BYTES, defaultStats.getLong("history_budget_bytes"));
+
+        // A stopped or unknown feed is not found
+        assertTrue(sendGet("/feeds/south/weather.json").startsWith("HTTP/1.1 404 Not Found"));
+    }
+
+    // Value of a header in a response returned by sendGet, null when missing
+    private String headerValue(String response, String name) {
+        for (String line : response.split("\n")) {
+            if (line.isEmpty()) {
+                break;
+            }
+            if (line.startsWith(name + ":")) {
+                return line.substring(name.length() + 1).trim();
+            }
+        }
+        return null;
+    }
+
+    // Send a PUT request with a JSON body and return the status line
+    private String sendPut(String jsonBody) throws IOException {
+        return sendPut("/weather.json", jsonBody, null).split("\n")[0];
+    }
+
+    // Send a PUT request on behalf of a content server and return the whole response
+    private String sendPut(String jsonBody, String contentServerId) throws IOException {
+        return sendPut("/weather.json", jsonBody, contentServerId);
+    }
+
+    // Send a PUT request and return the whole response
+    private String sendPut(String path, String jsonBody, String contentServerId) throws IOException {
+        try (Socket socket = new Socket("localhost", serverPort)) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            writer.println("PUT " + path + " HTTP/1.1");
+            writer.println("Host: localhost");
+            if (contentServerId != null) {
+                writer.println("Content-Server-Id: " + contentServerId);
+            }
+            writer.println("Content-Type: application/json");
+            writer.println("Content-Length: " + jsonBody.length());
+            writer.println();
+            writer.println(jsonBody);
+
+            StringBuilder response = new StringBuilder();
+            String responseLine;
+            while ((responseLine = reader.readLine()) != null) {
+                response.append(responseLine).append("\n");
+            }
+            return response.toString();
+        }
+    }
+
+    // Send a GET request with extra header lines and return the whole response
+    private String sendGet(String path, String... headers) throws IOException {
+        try (Socket socket = new Socket("localhost", serverPort)) {
+            PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            writer.println("GET " + path + " HTTP/1.1");
+            writer.println("Host: localhost");
+            for (String header : headers) {
+                writer.println(header);
+            }
+            writer.println();
+
+            StringBuilder response = new StringBuilder();
+            String responseLine;
+            while ((responseLine = reader.readLine()) != null) {
+                response.append(responseLine).append("\n");
+            }
+            return response.toString();
+        }
+    }
 }
@@ -0,0 +1,225 @@
+import java.io.*; // Provides DataInputStream and DataOutputStream for the binary framing
+import java.util.LinkedHashMap; // Keeps decoded fields in the order they were sent
+import java.util.Map; // Key-value view of weather fields
+import org.json.JSONObject; // Decoded frames are turned into the same JSON the HTTP PUT stores
+
+// Compact length-prefixed binary framing for high-frequency PUTs.
+//
+// A binary stream starts with the preamble
+//   4 byte MAGIC | UTF feedName (empty for the feed of the port)
+// which the server answers straight away with a grant
+//   byte ADMITTED | int frames, or byte REFUSED | int retryAfterSeconds, or byte UNKNOWN_FEED (and closes the connection)
+// An admitted client sends up to the granted number of frames:
+//   int length | long lamportClock | UTF stationId | short fieldCount | fieldCount x (UTF name | byte type | value)
+// and after the last frame of a grant waits for the next grant before sending more. Every grant costs the client
+// a token of the rate limit, so a stream is charged by the batch. A frame with length 0 ends the stream; the server
+// answers that, and a REFUSED grant in the middle of a stream, with the summary
+//   int accepted | int rejected | long lamportClock
+// Every frame the client sent before a refusal has been processed, the rest can be sent on a new stream.
+// The first magic byte is not printable ASCII, so the server can tell a binary stream from an HTTP request line.
+public class BinaryWeatherProtocol {
+    // Preamble sent once per connection (magic byte, 'W', 'B', protocol version)
+    static final byte[] MAGIC = {(byte) 0xB1, 'W', 'B', 2};
+    // Upper bound of a single frame so a corrupt length cannot make the server allocate huge buffers
+    static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    // Admission answers to the preamble
+    static final byte ADMITTED = 0;
+    static final byte REFUSED = 1;
+    static final byte UNKNOWN_FEED = 2;
+
+    // Value type tags
+    static final byte TYPE_STRING = 0;
+    static final byte TYPE_DOUBLE = 1;
+    static final byte TYPE_LONG = 2;
+
+    // The server's answer to the preamble and to the end of every batch
+    static class Grant {
+        final int frames;
+        final int retryAfterSeconds;
+
+        Grant(int frames, int retryAfterSeconds) {
+            this.frames = frames;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        boolean isAdmitted() {
+            return frames > 0;
+        }
+    }
+
+    // One decoded weather record
+    static class Frame {
+        final long lamportClock;
+        final String stationId;
+        final LinkedHashMap<String, Object> fields;
+
+        Frame(long lamportClock, String stationId, LinkedHashMap<String, Object> fields) {
+            this.lamportClock = lamportClock;
+            this.stationId = stationId;
+            this.fields = fields;
+        }
+
+        // Convert to the JSON the HTTP PUT path stores. Numbers go back to their text form, which the
+        // encoder guarantees is identical to the original, so the GET output does not change.
+        JSONObject toJson() {
+            JSONObject weatherJson = new JSONObject();
+            weatherJson.put("id", stationId);
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                weatherJson.put(field.getKey(), String.valueOf(field.getValue()));
+            }
+            return weatherJson;
+        }
+    }
+
+    // Write the connection preamble for a feed, null for the feed of the port
+    static void writePreamble(DataOutputStream out, String feedName) throws IOException {
+        out.write(MAGIC);
+        out.writeUTF(feedName == null ? "" : feedName);
+    }
+
+    // Read and verify the connection preamble, returns the feed name (empty for the feed of the port)
+    static String readPreamble(DataInputStream in) throws IOException {
+        byte[] preamble = new byte[MAGIC.length];
+        in.readFully(preamble);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (preamble[i] != MAGIC[i]) {
+                throw new IOException("Not a binary weather stream");
+            }
+        }
+        return in.readUTF();
+    }
+
+    // Let the client send the next batch of frames
+    static void writeAdmitted(DataOutputStream out, int frames) throws IOException {
+        out.writeByte(ADMITTED);
+        out.writeInt(frames);
+        out.flush();
+    }
+
+    // Refuse the stream or its next batch, the client may try again after retryAfterSeconds
+    static void writeRefused(DataOutputStream out, int retryAfterSeconds) throws IOException {
+        out.writeByte(REFUSED);
+        out.writeInt(retryAfterSeconds);
+        out.flush();
+    }
+
+    // The feed named in the preamble does not exist
+    static void writeUnknownFeed(DataOutputStream out) throws IOException {
+        out.writeByte(UNKNOWN_FEED);
+        out.flush();
+    }
+
+    // Read the server's answer to the preamble or to the end of a batch
+    static Grant readGrant(DataInputStream in) throws IOException {
+        byte answer = in.readByte();
+        if (answer == ADMITTED) {
+            int frames = in.readInt();
+            if (frames <= 0) {
+                throw new IOException("Invalid grant: " + frames);
+            }
+            return new Grant(frames, 0);
+        }
+        if (answer == UNKNOWN_FEED) {
+            throw new IOException("Unknown feed");
+        }
+        if (answer != REFUSED) {
+            throw new IOException("Invalid admission answer: " + answer);
+        }
+        return new Grant(0, Math.max(1, in.readInt()));
+    }
+
+    // Encode one record as a frame. The "id" field travels in the frame header.
+    static void writeFrame(DataOutputStream out, long lamportClock, Map<String, String> weatherData) throws IOException {
+        String stationId = weatherData.get("id");
+        if (stationId == null) {
+            throw new IllegalArgumentException("Weather record has no id");
+        }
+
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(256);
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeLong(lamportClock);
+        payload.writeUTF(stationId);
+        payload.writeShort(weatherData.size() - 1);
+        for (Map.Entry<String, String> field : weatherData.entrySet()) {
+            if (field.getKey().equals("id")) {
+                continue;
+            }
+            payload.writeUTF(field.getKey());
+            writeValue(payload, field.getValue());
+        }
+
+        out.writeInt(payloadBytes.size());
+        payloadBytes.writeTo(out);
+    }
+
+    // Write the end of stream marker
+    static void writeEndOfStream(DataOutputStream out) throws IOException {
+        out.writeInt(0);
+    }
+
+    // Decode the next frame, or return null at the end of stream marker
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == 0) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        byte[] payloadBytes = new byte[length];
+        in.readFully(payloadBytes);
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(payloadBytes));
+
+        long lamportClock = payload.readLong();
+        String stationId = payload.readUTF();
+        int fieldCount = payload.readUnsignedShort();
+        LinkedHashMap<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            String name = payload.readUTF();
+            fields.put(name, readValue(payload));
+        }
+        return new Frame(lamportClock, stationId, fields);
+    }
+
+    // Typed value: numbers are only sent as numbers when their text form survives the round trip
+    private static void writeValue(DataOutputStream out, String value) throws IOException {
+        try {
+            long longValue = Long.parseLong(value);
+            if (Long.toString(longValue).equals(value)) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong(longValue);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Not an integer, try a double next
+        }
+        try {
+            double doubleValue = Double.parseDouble(value);
+            if (Double.toString(doubleValue).equals(value)) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble(doubleValue);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Not a number, send it as text
+        }
+        out.writeByte(TYPE_STRING);
+        out.writeUTF(value);
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_STRING:
+                return in.readUTF();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_LONG:
+                return in.readLong();
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+}
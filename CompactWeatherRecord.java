@@ -0,0 +1,298 @@
+import java.math.BigDecimal; // Decimal JSON numbers are rebuilt as BigDecimal like the JSON parser produces
+import java.util.ArrayList; // Collects the remaining fields while encoding
+import java.util.Arrays; // To mark absent dictionary codes
+import java.util.List; // Collects the remaining fields while encoding
+import org.json.JSONObject; // Records are received and served as JSON
+
+// Memory compact form of a stored weather record.
+// Numeric fields are parsed into a primitive array at ingest, low-cardinality text fields are replaced by codes
+// of shared dictionaries and field names are interned, so repeated values are not kept once per station.
+// toJson() rebuilds exactly the JSON that was received, values that would not survive the round trip are kept as is.
+public class CompactWeatherRecord {
+    // Largest number of distinct values per dictionary field
+    private static final int MAX_DICTIONARY_SIZE = 4096;
+    // Dictionaries shared by all records, one per WeatherFields.DICTIONARY_FIELDS entry
+    static final StringDictionary[] DICTIONARIES = new StringDictionary[WeatherFields.DICTIONARY_FIELDS.length];
+    // Shared field names of the remaining fields
+    static final StringDictionary FIELD_NAMES = new StringDictionary(MAX_DICTIONARY_SIZE);
+
+    static {
+        for (int i = 0; i < DICTIONARIES.length; i++) {
+            DICTIONARIES[i] = new StringDictionary(MAX_DICTIONARY_SIZE);
+        }
+    }
+
+    // Largest integer a double holds exactly
+    private static final double MAX_EXACT_INTEGER = 9007199254740992.0;
+
+    private final String id;
+    // Values in WeatherFields.NUMERIC_FIELDS order, only meaningful where presentMask has the bit set
+    private final double[] numerics;
+    // Dictionary codes in WeatherFields.DICTIONARY_FIELDS order, -1 when absent
+    private final int[] codes;
+    // Bit per numeric field: present, received as a JSON string, written without a fraction
+    private final short presentMask;
+    private final short textMask;
+    private final short integralMask;
+    // Any other field as name, value pairs
+    private final Object[] extras;
+
+    CompactWeatherRecord(String id, double[] numerics, int[] codes, short presentMask, short textMask, short integralMask, Object[] extras) {
+        this.id = id;
+        this.numerics = numerics;
+        this.codes = codes;
+        this.presentMask = presentMask;
+        this.textMask = textMask;
+        this.integralMask = integralMask;
+        this.extras = extras;
+    }
+
+    // Encode a received JSON record
+    static CompactWeatherRecord fromJson(JSONObject weatherJson) {
+        String id = weatherJson.getString("id");
+        double[] numerics = new double[WeatherFields.NUMERIC_FIELDS.length];
+        int[] codes = new int[WeatherFields.DICTIONARY_FIELDS.length];
+        Arrays.fill(codes, -1);
+        int presentMask = 0;
+        int textMask = 0;
+        int integralMask = 0;
+        List<Object> extras = new ArrayList<>();
+
+        for (String field : weatherJson.keySet()) {
+            if (field.equals("id")) {
+                continue;
+            }
+            Object value = weatherJson.get(field);
+
+            int numericIndex = WeatherFields.numericIndex(field);
+            if (numericIndex >= 0) {
+                double number = WeatherFields.toDouble(value);
+                boolean text = value instanceof String;
+                // Keep the primitive only when it gives back the same JSON text, e.g. "60" and "13.3" but not "13.30"
+                boolean integral = isIntegral(number) && sameJson(value, decodeNumber(number, text, true));
+                if (Double.isFinite(number) && (integral || sameJson(value, decodeNumber(number, text, false)))) {
+                    numerics[numericIndex] = number;
+                    int bit = 1 << numericIndex;
+                    presentMask |= bit;
+                    textMask |= text ? bit : 0;
+                    integralMask |= integral ? bit : 0;
+                    continue;
+                }
+            }
+
+            int dictionaryIndex = WeatherFields.dictionaryIndex(field);
+            if (dictionaryIndex >= 0 && value instanceof String) {
+                int code = DICTIONARIES[dictionaryIndex].encode((String) value);
+                if (code >= 0) {
+                    codes[dictionaryIndex] = code;
+                    continue;
+                }
+            }
+
+            extras.add(FIELD_NAMES.intern(field));
+            extras.add(value);
+        }
+        return new CompactWeatherRecord(id, numerics, codes, (short) presentMask, (short) textMask, (short) integralMask,
+                                        extras.isEmpty() ? null : extras.toArray());
+    }
+
+    // Rebuild the received JSON
+    JSONObject toJson() {
+        JSONObject weatherJson = new JSONObject();
+        weatherJson.put("id", id);
+        for (int i = 0; i < numerics.length; i++) {
+            int bit = 1 << i;
+            if ((presentMask & bit) != 0) {
+                weatherJson.put(WeatherFields.NUMERIC_FIELDS[i], decodeNumber(numerics[i], (textMask & bit) != 0, (integralMask & bit) != 0));
+            }
+        }
+        for (int i = 0; i < codes.length; i++) {
+            if (codes[i] >= 0) {
+                weatherJson.put(WeatherFields.DICTIONARY_FIELDS[i], DICTIONARIES[i].decode(codes[i]));
+            }
+        }
+        if (extras != null) {
+            for (int i = 0; i < extras.length; i += 2) {
+                weatherJson.put((String) extras[i], extras[i + 1]);
+            }
+        }
+        return weatherJson;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    // Raw parts for stores that lay the record out themselves, the arrays are shared and must not be modified
+    double[] getNumerics() {
+        return numerics;
+    }
+
+    int[] getCodes() {
+        return codes;
+    }
+
+    short getPresentMask() {
+        return presentMask;
+    }
+
+    short getTextMask() {
+        return textMask;
+    }
+
+    short getIntegralMask() {
+        return integralMask;
+    }
+
+    Object[] getExtras() {
+        return extras;
+    }
+
+    // Value of a dictionary field, or null
+    String getDictionaryValue(int dictionaryIndex) {
+        int code = codes[dictionaryIndex];
+        if (code >= 0) {
+            return DICTIONARIES[dictionaryIndex].decode(code);
+        }
+        Object value = extra(WeatherFields.DICTIONARY_FIELDS[dictionaryIndex]);
+        return value instanceof String ? (String) value : null;
+    }
+
+    // Numeric fields in WeatherFields.NUMERIC_FIELDS order, NaN when missing
+    double[] numericValues() {
+        double[] values = new double[numerics.length];
+        for (int i = 0; i < numerics.length; i++) {
+            // Fields kept as received text are still parsed when they hold a number
+            values[i] = (presentMask & (1 << i)) != 0 ? numerics[i] : WeatherFields.toDouble(extra(WeatherFields.NUMERIC_FIELDS[i]));
+        }
+        return values;
+    }
+
+    // Estimated heap used by this record on a 64-bit JVM with compressed references.
+    // Dictionary values and field names are shared by all records and not counted.
+    long estimatedBytes() {
+        long bytes = align(12 + 4 * 4 + 3 * 2);           // Header, four references, three masks
+        bytes += stringBytes(id);
+        bytes += align(16 + 8L * numerics.length);         // double[]
+        bytes += align(16 + 4L * codes.length);            // int[]
+        if (extras != null) {
+            bytes += align(16 + 4L * extras.length);       // Object[]
+            for (int i = 1; i < extras.length; i += 2) {
+                bytes += extras[i] instanceof String ? stringBytes((String) extras[i]) : 16;
+            }
+        }
+        return bytes;
+    }
+
+    // Estimated heap of the same record kept as a parsed JSONObject (HashMap of field name to String)
+    static long estimatedJsonBytes(JSONObject weatherJson) {
+        long bytes = align(12 + 4) + align(12 + 4 * 3 + 4 * 4);  // JSONObject, HashMap
+        int tableSize = 16;
+        while (tableSize * 3 / 4 < weatherJson.length()) {
+            tableSize *= 2;
+        }
+        bytes += align(16 + 4L * tableSize);                     // HashMap table
+        for (String field : weatherJson.keySet()) {
+            Object value = weatherJson.get(field);
+            bytes += align(12 + 4 * 4) + stringBytes(field);  // HashMap.Node and its key
+            bytes += value instanceof String ? stringBytes((String) value) : 16;
+        }
+        return bytes;
+    }
+
+    private Object extra(String field) {
+        if (extras != null) {
+            for (int i = 0; i < extras.length; i += 2) {
+                if (extras[i].equals(field)) {
+                    return extras[i + 1];
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isIntegral(double number) {
+        return number == Math.rint(number) && Math.abs(number) < MAX_EXACT_INTEGER;
+    }
+
+    // JSON value for a stored number, in the type the parser produced for it
+    private static Object decodeNumber(double number, boolean text, boolean integral) {
+        if (text) {
+            return integral ? Long.toString((long) number) : Double.toString(number);
+        }
+        return integral ? (Object) Long.valueOf((long) number) : BigDecimal.valueOf(number);
+    }
+
+    private static boolean sameJson(Object original, Object decoded) {
+        return original.getClass() == String.class
+            ? original.equals(decoded)
+            : !(decoded instanceof String) && JSONObject.valueToString(original).equals(JSONObject.valueToString(decoded));
+    }
+
+    // Compact Latin-1 String: object plus its byte[]
+    private static long stringBytes(String value) {
+        return align(12 + 4 + 4 + 1) + align(16 + value.length());
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // Measure the heap used by many stations in both forms, e.g. java CompactWeatherRecord 1000000
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        String[] states = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+        String[] windDirections = {"N", "NE", "E", "SE", "S", "SW", "W", "NW"};
+
+        Object[] jsonRecords = new Object[stations];
+        long before = usedHeap();
+        for (int i = 0; i < stations; i++) {
+            jsonRecords[i] = sampleJson(i, states, windDirections);
+        }
+        long jsonBytes = usedHeap() - before;
+
+        Object[] compactRecords = new Object[stations];
+        before = usedHeap();
+        for (int i = 0; i < stations; i++) {
+            compactRecords[i] = fromJson(sampleJson(i, states, windDirections));
+        }
+        long compactBytes = usedHeap() - before;
+
+        System.out.println("Stations: " + stations);
+        System.out.println("JSONObject bytes per station (measured): " + jsonBytes / stations
+                           + ", estimated: " + estimatedJsonBytes((JSONObject) jsonRecords[0]));
+        System.out.println("Compact bytes per station (measured): " + compactBytes / stations
+                           + ", estimated: " + ((CompactWeatherRecord) compactRecords[0]).estimatedBytes());
+    }
+
+    // A record shaped like the weather files, parsed from text like a received PUT body
+    private static JSONObject sampleJson(int i, String[] states, String[] windDirections) {
+        JSONObject weatherJson = new JSONObject();
+        weatherJson.put("id", "IDS" + (100000 + i));
+        weatherJson.put("name", "Station " + i);
+        weatherJson.put("state", states[i % states.length]);
+        weatherJson.put("time_zone", "CST");
+        weatherJson.put("lat", String.valueOf(-10 - (i % 300) / 10.0));
+        weatherJson.put("lon", String.valueOf(110 + (i % 400) / 10.0));
+        weatherJson.put("local_date_time", "15/04:00pm");
+        weatherJson.put("local_date_time_full", "20230715160000");
+        weatherJson.put("air_temp", String.valueOf((i % 400) / 10.0));
+        weatherJson.put("apparent_t", "9.5");
+        weatherJson.put("cloud", "Partly cloudy");
+        weatherJson.put("dewpt", "5.7");
+        weatherJson.put("press", "1023.9");
+        weatherJson.put("rel_hum", String.valueOf(i % 100));
+        weatherJson.put("wind_dir", windDirections[i % windDirections.length]);
+        weatherJson.put("wind_spd_kmh", "15");
+        weatherJson.put("wind_spd_kt", "8");
+        return new JSONObject(weatherJson.toString());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -1,17 +1,27 @@
 import java.io.*; // Provides class for input output operations 
 import java.net.*; // Provides socket connection
+import java.util.ArrayList; // Ids of the records that could not be stored
+import java.util.Iterator; // Records still to be streamed when a binary stream is ended early
 import java.util.LinkedHashMap; // Provides class for storing weather data in key-value pair 
+import java.util.List; // Ids of the records that could not be stored
+import java.util.stream.Stream; // Records parsed lazily from the data file
 import org.json.JSONObject; // To parse and handle weather data JSON object
 
 // ContentServer class reads weather data , transforming it into JSON, and provide data to AggregationServer
 public class ContentServer {
     // Initialise the LamportClock for tracking time for synchronization
     private static LamportClock clock = new LamportClock(); 
+    // Attempts per record when the server answers 429 or 503, waiting Retry-After in between, -Dput.attempts
+    private static final int PUT_ATTEMPTS = Integer.getInteger("put.attempts", 5);
+    // Failed record ids listed in the final report, the rest are only counted
+    private static final int MAX_REPORTED_FAILURES = 100;
+    // Feed the records are sent to with --feed <name>, null for the feed of the port
+    private static String feedName;
 
     // Check for the arguments (Server, Port, Datafield)
     public static void main(String[] args) {
         if (args.length < 3) {
-            System.out.println("Usage : java ContentServer <server> <port> <datafile>");
+            System.out.println("Usage : java ContentServer <server> <port> <datafile> [--binary] [--feed <name>]");
             return;
         }
 
@@ -19,58 +29,100 @@ public class ContentServer {
         String server = args[0];
         int port = Integer.parseInt(args[1]);
         String filePath = args[2];
+        // Optional compact binary framing instead of HTTP/JSON, and optional feed of a multi-feed server
+        boolean binary = false;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--feed") && i + 1 < args.length) {
+                feedName = args[++i];
+            }
+        }
 
 
-        try {
-            // Convert the weather data text file content into a LinkedHashMap to preserve order
-            LinkedHashMap<String, String> weatherData = convertFileToLinkedHashMap(filePath);
-            
-            // Create a JSON Object for pretty-print JSON data 
-            JSONObject weatherJson = new JSONObject(weatherData);
-            // Printing parsed weather data
-            System.out.println("Parsed weather data:\n" + weatherJson.toString(4));  
-
-            // Increment Lamport Clock before PUT request to check clock is reflected for the event
-            clock.tick(); 
-            System.out.println("Lamport clock before PUT: " + clock.getClock());
-            
-            // Sending PUT request to AggregationServer 
-            sendPutRequest(server, port, weatherData);
-        } catch (IOException e) {
+        // Records are parsed lazily from the mapped file, so large multi-station files are never held in memory
+        try (Stream<LinkedHashMap<String, String>> records = WeatherFileParser.stream(filePath)) {
+            if (binary) {
+                // Streaming every record over one binary ingest connection
+                sendBinaryRecords(server, port, records.iterator());
+                return;
+            }
+
+            int[] counts = new int[2];  // records sent, records failed
+            List<String> failedIds = new ArrayList<>();
+            records.forEach(weatherData -> {
+                // Create a JSON Object for pretty-print JSON data 
+                JSONObject weatherJson = new JSONObject(weatherData);
+                // Printing parsed weather data
+                System.out.println("Parsed weather data:\n" + weatherJson.toString(4));  
+
+                // Increment Lamport Clock before PUT request to check clock is reflected for the event
+                clock.tick(); 
+                System.out.println("Lamport clock before PUT: " + clock.getClock());
+                
+                // Sending PUT request to AggregationServer 
+                counts[0]++;
+                if (!sendPutRequest(server, port, weatherData)) {
+                    counts[1]++;
+                    if (failedIds.size() < MAX_REPORTED_FAILURES) {
+                        failedIds.add(weatherData.getOrDefault("id", "(no id)"));
+                    }
+                }
+            });
+
+            // Report the records the server did not store, so they can be sent again
+            System.out.println("Sent " + counts[0] + " records, " + (counts[0] - counts[1]) + " stored");
+            if (counts[1] > 0) {
+                System.err.println(counts[1] + " records were not stored: " + failedIds
+                                   + (counts[1] > failedIds.size() ? " and " + (counts[1] - failedIds.size()) + " more" : ""));
+            }
+        } catch (IOException | UncheckedIOException e) {
             e.printStackTrace();
         }
     }
 
-    // Read the entire file line by line and spliting each line into key-value pair
+    // Read the first station record of a file, a file with several stations is read with WeatherFileParser
     static LinkedHashMap<String, String> convertFileToLinkedHashMap(String filePath) throws IOException {
-         // Use LinkedHashMap to preserve order
-        LinkedHashMap<String, String> map = new LinkedHashMap<>();
-        try (BufferedReader br = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            // Read each line
-            while ((line = br.readLine()) != null) {
-                // Split line by ':'
-                String[] parts = line.split(":", 2);
-                // Trim the white space
-                if (parts.length == 2) {
-                    String key = parts[0].trim();
-                    String value = parts[1].trim();
-                    // Add key-value pair to map
-                    map.put(key, value);  
-                }
+        try (WeatherFileParser parser = new WeatherFileParser(filePath)) {
+            // Empty map when the file holds no key-value pairs
+            return parser.hasNext() ? parser.next() : new LinkedHashMap<>();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Send PUT request and weather data to AggregationServer, returns whether the server stored it.
+    // A 429 or 503 answer is retried after its Retry-After, up to PUT_ATTEMPTS attempts.
+    static boolean sendPutRequest(String server, int port, LinkedHashMap<String, String> weatherData) {
+        for (int attempt = 1; attempt <= PUT_ATTEMPTS; attempt++) {
+            PutResponse response = putOnce(server, port, weatherData);
+            if (response.status == 200 || response.status == 201) {
+                return true;
+            }
+            if ((response.status != 429 && response.status != 503) || attempt == PUT_ATTEMPTS) {
+                return false;
+            }
+            System.out.println("Server is busy (" + response.status + "), retrying in " + response.retryAfterSeconds + " s");
+            try {
+                Thread.sleep(response.retryAfterSeconds * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
             }
         }
-        return map;
+        return false;
     }
 
-    // Send PUT request and weather data to AggregationServer
-    static void sendPutRequest(String server, int port, LinkedHashMap<String, String> weatherData) {
+    // One PUT attempt, status is -1 when the server could not be reached
+    private static PutResponse putOnce(String server, int port, LinkedHashMap<String, String> weatherData) {
+        PutResponse putResponse = new PutResponse();
 
         // Creating socket based connection to the server
         try (Socket socket = new Socket(server, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+             OutputStream out = socket.getOutputStream();
              // For receiving server response
              BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
+            HttpMessage.configure(socket);
 
             // Display message --> Connected to AggregationServer successful
             System.out.println("Connected to AggregationServer");
@@ -79,17 +131,15 @@ public class ContentServer {
             JSONObject jsonObject = new JSONObject(weatherData);
             String jsonString = jsonObject.toString(4);
 
-            // Send PUT request HTTP/1.1 to AggregationServer
-            out.println("PUT /weather.json HTTP/1.1");
-            out.println("Host: " + server + ":" + port);
-            out.println("User-Agent: ContentServer/1.0");
-            out.println("Content-Type: application/json"); // Ensure data type is in JSON format
-            out.println("Content-Length: " + jsonString.length()); // Size of the JSON body
-            out.println("Lamport-Clock: " + clock.getClock()); // Current value of LamportClock
-            out.println();
-
-            // Send the JSON data 
-            out.println(jsonString);
+            // Send PUT request HTTP/1.1 to AggregationServer as a single write, Content-Length is added from the encoded body
+            String path = feedName == null ? "/weather.json" : "/feeds/" + feedName + "/weather.json";
+            HttpMessage.start("PUT " + path + " HTTP/1.1")
+                       .header("Host", server + ":" + port)
+                       .header("User-Agent", "ContentServer/1.0")
+                       .header("Content-Type", "application/json") // Ensure data type is in JSON format
+                       .header("Lamport-Clock", String.valueOf(clock.getClock())) // Current value of LamportClock
+                       .body(jsonString)
+                       .send(out);
             System.out.println("Sending JSON data:\n" + jsonString);
 
             // Read and print the server response
@@ -98,8 +148,12 @@ public class ContentServer {
             int receivedClock = -1;
             while ((response = in.readLine()) != null) {
                 System.out.println("Response from server: " + response);
-                if (response.startsWith("Lamport-Clock:")) {
+                if (putResponse.status == -1 && response.startsWith("HTTP/")) {
+                    putResponse.status = parseStatus(response);
+                } else if (response.startsWith("Lamport-Clock:")) {
                     receivedClock = Integer.parseInt(response.split(":")[1].trim());
+                } else if (response.regionMatches(true, 0, "Retry-After:", 0, "Retry-After:".length())) {
+                    putResponse.retryAfterSeconds = parseRetryAfter(response.substring("Retry-After:".length()).trim());
                 }
             }
 
@@ -114,5 +168,125 @@ public class ContentServer {
             e.printStackTrace();
             System.out.println("Failed to connect to AggregationServer at " + server + ":" + port);
         }
+        return putResponse;
+    }
+
+    // Status code of a status line such as "HTTP/1.1 201 Created", -1 when it has none
+    private static int parseStatus(String statusLine) {
+        String[] parts = statusLine.split(" ");
+        try {
+            return parts.length > 1 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Seconds of a Retry-After header, at least one; dates are not sent by AggregationServer and count as one second
+    private static int parseRetryAfter(String value) {
+        try {
+            return Math.max(1, Integer.parseInt(value));
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    // Outcome of one PUT attempt
+    private static class PutResponse {
+        int status = -1;
+        int retryAfterSeconds = 1;
+    }
+
+    // Stream records to AggregationServer over the binary ingest protocol. A stream the server refuses or ends early
+    // is continued on a new connection after the server's retry-after, so every record is sent once; PUT_ATTEMPTS
+    // refusals in a row without any record stored give up.
+    static void sendBinaryRecords(String server, int port, Iterator<LinkedHashMap<String, String>> records) {
+        int refusals = 0;
+        while (true) {
+            StreamResult result = sendBinaryStream(server, port, records);
+            if (result.retryAfterSeconds == 0) {
+                return;
+            }
+            refusals = result.accepted > 0 ? 1 : refusals + 1;
+            if (refusals == PUT_ATTEMPTS) {
+                System.err.println("AggregationServer refused the binary stream " + refusals + " times, the remaining records were not stored");
+                return;
+            }
+            System.out.println("AggregationServer ended the binary stream, continuing in " + result.retryAfterSeconds + " s");
+            try {
+                Thread.sleep(result.retryAfterSeconds * 1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Outcome of one binary stream, retryAfterSeconds is 0 when every record was sent
+    private static class StreamResult {
+        int accepted;
+        int retryAfterSeconds;
+    }
+
+    // One binary stream: send records batch by batch as the server grants them
+    private static StreamResult sendBinaryStream(String server, int port, Iterator<LinkedHashMap<String, String>> records) {
+        StreamResult result = new StreamResult();
+        try (Socket socket = new Socket(server, port);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+
+            System.out.println("Connected to AggregationServer (binary)");
+            BinaryWeatherProtocol.writePreamble(out, feedName);
+            out.flush();
+            // The server answers the preamble before any record is sent
+            BinaryWeatherProtocol.Grant grant = BinaryWeatherProtocol.readGrant(in);
+            if (!grant.isAdmitted()) {
+                result.retryAfterSeconds = grant.retryAfterSeconds;
+                return result;
+            }
+
+            int sent = 0;
+            int remainingInBatch = grant.frames;
+            while (records.hasNext()) {
+                LinkedHashMap<String, String> weatherData = records.next();
+                if (!weatherData.containsKey("id")) {
+                    System.out.println("Skipping weather record without id");
+                    continue;
+                }
+                // Every record is a send event for the Lamport Clock
+                clock.tick();
+                BinaryWeatherProtocol.writeFrame(out, clock.getClock(), weatherData);
+                sent++;
+                if (--remainingInBatch == 0) {
+                    // The next batch needs a new grant, a refusal ends the stream with everything sent so far processed
+                    out.flush();
+                    grant = BinaryWeatherProtocol.readGrant(in);
+                    if (!grant.isAdmitted()) {
+                        result.retryAfterSeconds = grant.retryAfterSeconds;
+                        break;
+                    }
+                    remainingInBatch = grant.frames;
+                }
+            }
+            if (result.retryAfterSeconds == 0) {
+                BinaryWeatherProtocol.writeEndOfStream(out);
+                out.flush();
+            }
+            System.out.println("Sent " + sent + " binary records");
+
+            // Read the summary reply: accepted, rejected, server Lamport clock
+            result.accepted = in.readInt();
+            int rejected = in.readInt();
+            long receivedClock = in.readLong();
+            System.out.println("Response from server: accepted " + result.accepted + ", rejected " + rejected);
+
+            clock.update((int) receivedClock);
+            System.out.println("Lamport clock updated after PUT: " + clock.getClock());
+
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Failed to connect to AggregationServer at " + server + ":" + port);
+            result.retryAfterSeconds = 0;
+        }
+        return result;
     }
 }
\ No newline at end of file
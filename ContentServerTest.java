@@ -3,7 +3,9 @@ import org.junit.rules.TemporaryFolder; // Provides Temporary folders used in te
 import java.io.*; // Provides class for input and output operations
 import java.net.ServerSocket; // To create Mocke server
 import java.net.Socket; // To simulate client connection
+import java.util.ArrayList; // To collect parsed records
 import java.util.LinkedHashMap; // To store weather data in key-value pair
+import java.util.List; // To collect parsed records
 import static org.junit.Assert.*; // To validate tests result
 
 public class ContentServerTest {
@@ -111,6 +113,58 @@ public class ContentServerTest {
     }
 
 
+    // Test for a file with several stations, every "id" line starts a new record
+    @Test
+    public void testMultiStationFile() throws Exception {
+        File tempFile = tempFolder.newFile("multi_station.txt");
+        try (FileWriter writer = new FileWriter(tempFile)) {
+            writer.write("id:IDS60901\nname:Adelaide\nair_temp: 13.3\r\n\n");
+            writer.write("id : IDS60902\nname:Kent Town\nlocal_date_time:15/04:00pm\n");
+            writer.write("no delimiter\n  :oops\nid:IDS60903\nair_temp:9.1");
+        }
+
+        List<LinkedHashMap<String, String>> records = new ArrayList<>();
+        try (WeatherFileParser parser = new WeatherFileParser(tempFile.getAbsolutePath())) {
+            parser.forEachRemaining(records::add);
+        }
+
+        assertEquals(3, records.size());
+        assertEquals("IDS60901", records.get(0).get("id"));
+        assertEquals("13.3", records.get(0).get("air_temp"));
+        assertEquals("IDS60902", records.get(1).get("id"));
+        assertEquals("Kent Town", records.get(1).get("name"));
+        assertEquals("15/04:00pm", records.get(1).get("local_date_time"));
+        assertEquals("oops", records.get(1).get(""));  // A key of only whitespace is read as the empty key
+        assertEquals(2, records.get(2).size());
+        assertEquals("9.1", records.get(2).get("air_temp"));
+
+        // Only the first station is returned by convertFileToLinkedHashMap
+        assertEquals("Adelaide", ContentServer.convertFileToLinkedHashMap(tempFile.getAbsolutePath()).get("name"));
+    }
+
+    // Lines crossing the end of a mapped window are read whole from the next window
+    @Test
+    public void testParserWindowBoundaries() throws Exception {
+        File tempFile = tempFolder.newFile("many_stations.txt");
+        try (FileWriter writer = new FileWriter(tempFile)) {
+            for (int i = 0; i < 500; i++) {
+                writer.write("id:IDS" + (100000 + i) + "\nname:Station " + i + "\nair_temp:" + (i / 10.0) + "\n");
+            }
+        }
+
+        int count = 0;
+        try (WeatherFileParser parser = new WeatherFileParser(tempFile.getAbsolutePath(), 100)) {
+            while (parser.hasNext()) {
+                LinkedHashMap<String, String> record = parser.next();
+                assertEquals("IDS" + (100000 + count), record.get("id"));
+                assertEquals("Station " + count, record.get("name"));
+                assertEquals(String.valueOf(count / 10.0), record.get("air_temp"));
+                count++;
+            }
+        }
+        assertEquals(500, count);
+    }
+
     // Edge Case: Failed connection to server (integration test)
     @Test
     public void testSendPutRequestWithFailedConnection() {
@@ -118,7 +172,48 @@ public class ContentServerTest {
         weatherData.put("temperature", "25");
         weatherData.put("humidity", "60");
 
-        ContentServer.sendPutRequest("localhost", 9999, weatherData);  // Port 9999 should not be running
+        assertFalse(ContentServer.sendPutRequest("localhost", 9999, weatherData));  // Port 9999 should not be running
         System.out.println("Test 'testSendPutRequestWithFailedConnection' passed.");
     }
+
+    // Test that a 429 answer is retried after Retry-After and a 400 answer is reported as failed without retrying
+    @Test
+    public void testSendPutRequestRetriesTooManyRequests() throws Exception {
+        LinkedHashMap<String, String> weatherData = new LinkedHashMap<>();
+        weatherData.put("id", "IDS60901");
+        weatherData.put("air_temp", "13.3");
+
+        try (ServerSocket limitingServer = new ServerSocket(0)) {
+            List<String> answers = new ArrayList<>();
+            Thread limitingThread = new Thread(() -> {
+                String[] statusLines = {"HTTP/1.1 429 Too Many Requests", "HTTP/1.1 201 Created", "HTTP/1.1 400 Bad Request"};
+                for (String statusLine : statusLines) {
+                    try (Socket clientSocket = limitingServer.accept()) {
+                        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+                        String line;
+                        while ((line = in.readLine()) != null && !line.isEmpty()) {
+                            // Skip the request line and headers
+                        }
+                        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+                        out.println(statusLine);
+                        out.println("Retry-After: 1");
+                        out.println();
+                        answers.add(statusLine);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            limitingThread.start();
+
+            // First attempt is limited, the retry is stored
+            long start = System.currentTimeMillis();
+            assertTrue(ContentServer.sendPutRequest("localhost", limitingServer.getLocalPort(), weatherData));
+            assertTrue(System.currentTimeMillis() - start >= 1000);
+            // A 400 is not retried
+            assertFalse(ContentServer.sendPutRequest("localhost", limitingServer.getLocalPort(), weatherData));
+            limitingThread.join(5000);
+            assertEquals(3, answers.size());
+        }
+    }
 }
\ No newline at end of file
@@ -1,59 +1,584 @@
 import java.io.*; // Provides class for input and output operations
 import java.net.*; // Provides socket connection
+import java.nio.charset.StandardCharsets; // Responses are decoded as UTF-8
+import java.util.ArrayList; // Endpoints, attempts and response headers
+import java.util.Arrays; // Sorting latency samples for the percentile
+import java.util.List; // Endpoints, attempts and response headers
+import java.util.Properties; // On-disk format of the response cache
+import java.util.concurrent.*; // Runs attempts in parallel for hedging
 
 public class GETClient {
+    // How long to wait for another server when too few latencies were measured for a percentile
+    private static final long DEFAULT_HEDGE_DELAY_MS = Long.getLong("getclient.hedge.delay.ms", 100);
+    // Latency samples needed before the percentile is used as the hedge delay
+    private static final int MIN_LATENCY_SAMPLES = 5;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // How long an attempt waits for the next bytes of a response before it fails and the next server is asked,
+    // -Dgetclient.read.timeout.ms
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("getclient.read.timeout.ms", 10000);
+    // Attempts run on daemon threads so an unanswered server never keeps the client alive
+    private static final ExecutorService ATTEMPT_POOL = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "GETClient-attempt");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) {
         // Check if both server and port are provided as arguments
         if (args.length < 2) {
-            System.out.println("Usage: java GETClient <server> <port>");
+            System.out.println("Usage: java GETClient <server> <port> [<server>:<port> ...] [--parsed] [--cache <file>] "
+                               + "[--hedge-percentile <p>] [--path <path>]");
             return;
         }
 
-        String server = args[0];
-        int port = Integer.parseInt(args[1]);
+        // The first server is asked first, the others are used for hedging and failover in the given order
+        List<Endpoint> endpoints = new ArrayList<>();
+        endpoints.add(new Endpoint(args[0], Integer.parseInt(args[1])));
+        boolean parsed = false;
+        String cacheFile = null;
+        double hedgePercentile = 95;
+        String path = "/weather.json";
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("--parsed")) {
+                parsed = true;
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheFile = args[++i];
+            } else if (args[i].equals("--hedge-percentile") && i + 1 < args.length) {
+                hedgePercentile = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--path") && i + 1 < args.length) {
+                path = args[++i];
+            } else {
+                endpoints.add(Endpoint.parse(args[i]));
+            }
+        }
 
-        //Establish a connection to the server
+        //Establish a connection to the servers
         try {
-            connectToServer(server, port); 
+            ResponseCache cache = cacheFile != null ? ResponseCache.load(new File(cacheFile)) : new ResponseCache(null);
+            fetch(endpoints, path, cache, hedgePercentile, parsed, System.out);
         } catch (IOException e) {
             System.err.println("Error while communicating with the server: " + e.getMessage());
             e.printStackTrace();
         }
     }
-    // Send a GET request and connect to server
-    private static void connectToServer(String server, int port) throws IOException {
-        // Open socket connection
-        Socket socket = new Socket(server, port);  
 
-        try (BufferedReader serverResponse = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             PrintWriter requestWriter = new PrintWriter(socket.getOutputStream(), true)) {
+    // Get the path from the fastest of the endpoints and print the response, raw or as key-value lines
+    static void fetch(List<Endpoint> endpoints, String path, ResponseCache cache, double hedgePercentile,
+                      boolean parsed, PrintStream output) throws IOException {
+        Response response = fetchHedged(endpoints, path, cache, cache.latencies.percentile(hedgePercentile));
+        try {
+            cache.latencies.record(response.latencyMs);
+
+            if (response.statusCode == 304 && cache.body != null) {
+                // Not modified since the cached response, print that one
+                System.err.println("Not modified, using cached response from " + cache.endpoint);
+                if (parsed) {
+                    printParsed(new StringReader(cache.body), output);
+                } else {
+                    output.println(cache.head);
+                    output.println();
+                    readServerResponse(new BufferedReader(new StringReader(cache.body)), output);
+                }
+                cache.save();
+                return;
+            }
 
-            // Send the GET request for weather data
-            sendGetRequest(requestWriter);
+            // The body is streamed to the output, and copied for the cache when it can be revalidated later
+            boolean cacheable = cache.file != null && response.statusCode == 200 && response.etag != null;
+            StringWriter bodyCopy = new StringWriter();
+            Reader body = cacheable ? new TeeReader(response.reader, bodyCopy) : response.reader;
+            if (parsed) {
+                if (response.statusCode != 200) {
+                    output.println(response.statusLine);
+                }
+                printParsed(body, output);
+            } else {
+                output.println(response.head());
+                output.println();
+                readServerResponse(new BufferedReader(body), output);
+            }
 
-            // Display the response from the server
-            readServerResponse(serverResponse);
+            if (cacheable) {
+                cache.endpoint = response.endpoint + path;
+                cache.etag = response.etag;
+                cache.head = response.head();
+                cache.body = bodyCopy.toString();
+            }
+            cache.save();
         } finally {
-            socket.close();
+            response.attempt.close();
         }
     }
 
-    // Send GET request to the server in HTTP/1.1 format
-    private static void sendGetRequest(PrintWriter requestWriter) {
-        requestWriter.println("GET /weather.json HTTP/1.1");
-        requestWriter.println("Host: localhost"); 
-        requestWriter.println("Connection: close");  // Close connection after response
-        requestWriter.println();  // End of header
+    // Ask the first endpoint, and every further endpoint when no answer arrived within the hedge delay
+    // or an earlier attempt failed. The first response headers win, the other attempts are closed.
+    static Response fetchHedged(List<Endpoint> endpoints, String path, ResponseCache cache, long hedgeDelayMs) throws IOException {
+        CompletionService<Response> completion = new ExecutorCompletionService<>(ATTEMPT_POOL);
+        List<Attempt> attempts = new ArrayList<>();
+        Response winner = null;
+        IOException lastFailure = null;
+        try {
+            startAttempt(endpoints.get(0), path, cache, completion, attempts);
+            int running = 1;
+            while (running > 0) {
+                Future<Response> done;
+                if (attempts.size() < endpoints.size()) {
+                    done = completion.poll(hedgeDelayMs, TimeUnit.MILLISECONDS);
+                    if (done == null) {
+                        // Slower than usual: hedge with the next server
+                        System.err.println("No response within " + hedgeDelayMs + " ms, also asking "
+                                           + endpoints.get(attempts.size()));
+                        startAttempt(endpoints.get(attempts.size()), path, cache, completion, attempts);
+                        running++;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                running--;
+
+                try {
+                    winner = done.get();
+                    return winner;
+                } catch (ExecutionException e) {
+                    lastFailure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    System.err.println("Request failed: " + lastFailure.getMessage());
+                    // Fail over to the next server straight away
+                    if (attempts.size() < endpoints.size()) {
+                        startAttempt(endpoints.get(attempts.size()), path, cache, completion, attempts);
+                        running++;
+                    }
+                }
+            }
+            throw lastFailure;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a response");
+        } finally {
+            for (Attempt attempt : attempts) {
+                if (winner == null || attempt != winner.attempt) {
+                    attempt.close();
+                }
+            }
+        }
+    }
+
+    private static void startAttempt(Endpoint endpoint, String path, ResponseCache cache,
+                                    CompletionService<Response> completion, List<Attempt> attempts) {
+        // Only the server and path that produced the cached response can confirm it is unchanged
+        String ifNoneMatch = cache.etag != null && (endpoint + path).equals(cache.endpoint) ? cache.etag : null;
+        Attempt attempt = new Attempt(endpoint, path, ifNoneMatch);
+        attempts.add(attempt);
+        completion.submit(attempt);
     }
 
     // Read the response from the server
-    private static void readServerResponse(BufferedReader serverResponse) throws IOException {
+    private static void readServerResponse(BufferedReader serverResponse, PrintStream output) throws IOException {
         String responseLine;
 
         // Iterate through the response from the server
         while ((responseLine = serverResponse.readLine()) != null) {
-            System.out.println(responseLine);
+            output.println(responseLine);
+        }
+    }
+
+    // Print a JSON body as one "key: value" line per value while it is read, nested keys joined by '.'
+    static void printParsed(Reader body, PrintStream output) throws IOException {
+        JsonLineParser parser = new JsonLineParser(new PushbackReader(body), output);
+        parser.skipWhitespace();
+        if (parser.peek() != -1) {
+            parser.parseValue("");
+        }
+    }
+
+    // A server to fetch from
+    static class Endpoint {
+        final String host;
+        final int port;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        // Parse "host:port", or "http://host:port"
+        static Endpoint parse(String text) {
+            String address = text.startsWith("http://") ? text.substring("http://".length()) : text;
+            if (address.endsWith("/")) {
+                address = address.substring(0, address.length() - 1);
+            }
+            int separator = address.lastIndexOf(':');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Expected <server>:<port> but got " + text);
+            }
+            return new Endpoint(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1)));
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    // One request to one endpoint, completes when the status line and headers are read
+    static class Attempt implements Callable<Response> {
+        private final Endpoint endpoint;
+        private final String path;
+        private final String ifNoneMatch;
+        private final Socket socket = new Socket();
+
+        Attempt(Endpoint endpoint, String path, String ifNoneMatch) {
+            this.endpoint = endpoint;
+            this.path = path;
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public Response call() throws IOException {
+            long start = System.nanoTime();
+            HttpMessage.configure(socket);
+            // Without it a server that accepts but never answers would keep the last attempt, and fetch, waiting forever
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.connect(new InetSocketAddress(endpoint.host, endpoint.port), CONNECT_TIMEOUT_MS);
+
+            // Send the GET request in HTTP/1.1 format, the whole request in one write
+            HttpMessage request = HttpMessage.start("GET " + path + " HTTP/1.1")
+                                             .header("Host", endpoint.host)
+                                             .header("Connection", "close");  // Close connection after response
+            if (ifNoneMatch != null) {
+                request.header("If-None-Match", ifNoneMatch);
+            }
+            request.send(socket.getOutputStream());
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String statusLine = reader.readLine();
+            if (statusLine == null) {
+                throw new IOException("Empty response from " + endpoint);
+            }
+            List<String> headers = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                headers.add(line);
+            }
+            return new Response(this, statusLine, headers, reader, (System.nanoTime() - start) / 1000000);
+        }
+
+        // Abandon the attempt, a blocked read or connect fails at once
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to release
+            }
+        }
+    }
+
+    // Status line and headers of a response, the body is still to be read from reader
+    static class Response {
+        final Attempt attempt;
+        final Endpoint endpoint;
+        final String statusLine;
+        final int statusCode;
+        final List<String> headers;
+        final String etag;
+        final BufferedReader reader;
+        final long latencyMs;
+
+        Response(Attempt attempt, String statusLine, List<String> headers, BufferedReader reader, long latencyMs) {
+            this.attempt = attempt;
+            this.endpoint = attempt.endpoint;
+            this.statusLine = statusLine;
+            String[] parts = statusLine.split(" ");
+            this.statusCode = parts.length > 1 && parts[1].matches("\\d{3}") ? Integer.parseInt(parts[1]) : -1;
+            this.headers = headers;
+            this.reader = reader;
+            this.latencyMs = latencyMs;
+            String etag = null;
+            for (String header : headers) {
+                if (header.toLowerCase().startsWith("etag:")) {
+                    etag = header.substring("etag:".length()).trim();
+                }
+            }
+            this.etag = etag;
+        }
+
+        // Status line and header lines as received
+        String head() {
+            StringBuilder head = new StringBuilder(statusLine);
+            for (String header : headers) {
+                head.append('\n').append(header);
+            }
+            return head.toString();
+        }
+    }
+
+    // Recent response latencies, their percentile is how long to wait before hedging
+    static class LatencyTracker {
+        private static final int CAPACITY = 64;
+        private final long[] samples = new long[CAPACITY];
+        private int count;
+        private int next;
+
+        synchronized void record(long latencyMs) {
+            samples[next] = latencyMs;
+            next = (next + 1) % CAPACITY;
+            count = Math.min(count + 1, CAPACITY);
+        }
+
+        // The p-th percentile of the recorded latencies, the default delay until enough were recorded
+        synchronized long percentile(double p) {
+            if (count < MIN_LATENCY_SAMPLES) {
+                return DEFAULT_HEDGE_DELAY_MS;
+            }
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p / 100.0 * count) - 1;
+            return Math.max(1, sorted[Math.max(0, Math.min(count - 1, index))]);
+        }
+
+        // Oldest first, e.g. "12,9,15"
+        synchronized String toText() {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    text.append(',');
+                }
+                text.append(samples[(next - count + i + CAPACITY) % CAPACITY]);
+            }
+            return text.toString();
+        }
+
+        synchronized void fromText(String text) {
+            for (String sample : text.split(",")) {
+                if (!sample.isEmpty()) {
+                    record(Long.parseLong(sample));
+                }
+            }
+        }
+    }
+
+    // The last response with its ETag and the measured latencies, kept in a file between runs
+    static class ResponseCache {
+        final File file;
+        final LatencyTracker latencies = new LatencyTracker();
+        String endpoint;
+        String etag;
+        String head;
+        String body;
+
+        ResponseCache(File file) {
+            this.file = file;
+        }
+
+        static ResponseCache load(File file) throws IOException {
+            ResponseCache cache = new ResponseCache(file);
+            if (file.exists()) {
+                Properties properties = new Properties();
+                try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                    properties.load(reader);
+                }
+                cache.endpoint = properties.getProperty("endpoint");
+                cache.etag = properties.getProperty("etag");
+                cache.head = properties.getProperty("head");
+                cache.body = properties.getProperty("body");
+                cache.latencies.fromText(properties.getProperty("latencies", ""));
+            }
+            return cache;
+        }
+
+        // Write the cache file, nothing to do for an in-memory cache
+        void save() throws IOException {
+            if (file == null) {
+                return;
+            }
+            Properties properties = new Properties();
+            if (etag != null && head != null && body != null) {
+                properties.setProperty("endpoint", endpoint);
+                properties.setProperty("etag", etag);
+                properties.setProperty("head", head);
+                properties.setProperty("body", body);
+            }
+            properties.setProperty("latencies", latencies.toText());
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                properties.store(writer, "GETClient response cache");
+            }
+        }
+    }
+
+    // Reader that copies everything read into a writer
+    private static class TeeReader extends FilterReader {
+        private final Writer copy;
+
+        TeeReader(Reader in, Writer copy) {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int c = super.read();
+            if (c != -1) {
+                copy.write(c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                copy.write(buffer, offset, read);
+            }
+            return read;
+        }
+    }
+
+    // Streaming JSON reader that prints every value as soon as it is parsed, nothing is buffered beyond one value
+    private static class JsonLineParser {
+        private final PushbackReader in;
+        private final PrintStream output;
+
+        JsonLineParser(PushbackReader in, PrintStream output) {
+            this.in = in;
+            this.output = output;
+        }
+
+        void parseValue(String key) throws IOException {
+            skipWhitespace();
+            int c = peek();
+            if (c == '{') {
+                parseObject(key);
+            } else if (c == '[') {
+                parseArray(key);
+            } else if (c == '"') {
+                printValue(key, parseString());
+            } else {
+                printValue(key, parseLiteral());
+            }
+        }
+
+        private void parseObject(String prefix) throws IOException {
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                in.read();
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                String name = parseString();
+                skipWhitespace();
+                expect(':');
+                parseValue(prefix.isEmpty() ? name : prefix + "." + name);
+                skipWhitespace();
+                int c = in.read();
+                if (c == '}') {
+                    return;
+                }
+                if (c != ',') {
+                    throw new IOException("Malformed JSON: expected ',' or '}'");
+                }
+            }
+        }
+
+        private void parseArray(String prefix) throws IOException {
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                in.read();
+                return;
+            }
+            for (int index = 0; ; index++) {
+                parseValue(prefix + "[" + index + "]");
+                skipWhitespace();
+                int c = in.read();
+                if (c == ']') {
+                    return;
+                }
+                if (c != ',') {
+                    throw new IOException("Malformed JSON: expected ',' or ']'");
+                }
+            }
+        }
+
+        private String parseString() throws IOException {
+            expect('"');
+            StringBuilder text = new StringBuilder();
+            while (true) {
+                int c = in.read();
+                if (c == -1) {
+                    throw new IOException("Malformed JSON: unterminated string");
+                }
+                if (c == '"') {
+                    return text.toString();
+                }
+                if (c == '\\') {
+                    int escaped = in.read();
+                    switch (escaped) {
+                        case 'n': text.append('\n'); break;
+                        case 't': text.append('\t'); break;
+                        case 'r': text.append('\r'); break;
+                        case 'b': text.append('\b'); break;
+                        case 'f': text.append('\f'); break;
+                        case 'u':
+                            char[] hex = new char[4];
+                            for (int i = 0; i < 4; i++) {
+                                hex[i] = (char) in.read();
+                            }
+                            text.append((char) Integer.parseInt(new String(hex), 16));
+                            break;
+                        case -1: throw new IOException("Malformed JSON: unterminated string");
+                        default: text.append((char) escaped);
+                    }
+                } else {
+                    text.append((char) c);
+                }
+            }
+        }
+
+        // Numbers, true, false and null are printed as written
+        private String parseLiteral() throws IOException {
+            StringBuilder text = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != ',' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+                text.append((char) c);
+            }
+            if (c != -1) {
+                in.unread(c);
+            }
+            if (text.length() == 0) {
+                throw new IOException("Malformed JSON: expected a value");
+            }
+            return text.toString();
+        }
+
+        private void printValue(String key, String value) {
+            output.println(key + ": " + value);
+        }
+
+        private void expect(int expected) throws IOException {
+            int c = in.read();
+            if (c != expected) {
+                throw new IOException("Malformed JSON: expected '" + (char) expected + "'");
+            }
+        }
+
+        int peek() throws IOException {
+            int c = in.read();
+            if (c != -1) {
+                in.unread(c);
+            }
+            return c;
+        }
+
+        void skipWhitespace() throws IOException {
+            int c;
+            while ((c = in.read()) != -1 && Character.isWhitespace(c)) {
+                // Skip
+            }
+            if (c != -1) {
+                in.unread(c);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -1,6 +1,7 @@
 import org.junit.*;
 import java.io.*; // Provides class for input and output operations
 import java.net.*; // Provide socket connection
+import java.util.concurrent.atomic.AtomicInteger; // Counts the 304 answers of the mock server
 import static org.junit.Assert.*; // Provide assertion Methods for testing
 
 public class GETClientTest {
@@ -8,6 +9,8 @@ public class GETClientTest {
     private static ServerSocket testServerSocket;
     private static Thread serverThread;
     private static final int TEST_PORT = 8888; 
+    // 304 Not Modified answers sent by the mock server
+    private static final AtomicInteger notModifiedResponses = new AtomicInteger();
 
     @BeforeClass
     public static void startTestServer() throws Exception {
@@ -41,6 +44,25 @@ public class GETClientTest {
                 out.println("Content-Type: application/json");
                 out.println();
                 out.println("{\"weather\":\"Sunny\"}");
+            } else if (requestLine.contains("/cached")) {
+                // Revalidation: 304 when the client already has version "v1"
+                boolean notModified = false;
+                String header;
+                while ((header = in.readLine()) != null && !header.isEmpty()) {
+                    notModified |= header.equals("If-None-Match: \"v1\"");
+                }
+                if (notModified) {
+                    notModifiedResponses.incrementAndGet();
+                    out.println("HTTP/1.1 304 Not Modified");
+                    out.println("ETag: \"v1\"");
+                    out.println();
+                } else {
+                    out.println("HTTP/1.1 200 OK");
+                    out.println("Content-Type: application/json");
+                    out.println("ETag: \"v1\"");
+                    out.println();
+                    out.println("{\"weather\":\"Cloudy\"}");
+                }
             } else if (requestLine.contains("/empty")) {
                 // Return empty body for testing empty response
                 out.println("HTTP/1.1 200 OK");
@@ -160,6 +182,65 @@ public class GETClientTest {
         System.setOut(originalOut);
     }
 
+    // Test parsed output mode: one key-value per line instead of the raw response
+    @Test
+    public void testParsedOutput() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(outputStream));
+
+        GETClient.main(new String[]{"localhost", String.valueOf(TEST_PORT), "--parsed"});
+
+        System.setOut(originalOut);
+        assertEquals("weather: Sunny", outputStream.toString().trim());
+    }
+
+    // Test the --cache round trip: the first response is stored with its ETag, the second run sends If-None-Match
+    // and prints the cached response when the server answers 304
+    @Test
+    public void testCachedResponseRevalidation() throws Exception {
+        File cacheFile = File.createTempFile("getclient", ".cache");
+        cacheFile.delete();
+        cacheFile.deleteOnExit();
+        String[] args = {"localhost", String.valueOf(TEST_PORT), "--cache", cacheFile.getAbsolutePath(), "--path", "/cached"};
+        PrintStream originalOut = System.out;
+        try {
+            ByteArrayOutputStream firstOutput = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(firstOutput));
+            GETClient.main(args);
+            assertTrue(firstOutput.toString().contains("{\"weather\":\"Cloudy\"}"));
+            assertTrue(cacheFile.exists());
+            int notModifiedBefore = notModifiedResponses.get();
+
+            ByteArrayOutputStream secondOutput = new ByteArrayOutputStream();
+            System.setOut(new PrintStream(secondOutput));
+            GETClient.main(args);
+            assertEquals(notModifiedBefore + 1, notModifiedResponses.get());
+            assertTrue(secondOutput.toString().startsWith("HTTP/1.1 200 OK"));  // The cached response, not the 304
+            assertTrue(secondOutput.toString().contains("{\"weather\":\"Cloudy\"}"));
+        } finally {
+            System.setOut(originalOut);
+            cacheFile.delete();
+        }
+    }
+
+    // Test a hedged request: the first server accepts but never answers, the second one answers
+    @Test(timeout = 5000)
+    public void testHedgedRequest() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0)) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            PrintStream originalOut = System.out;
+            System.setOut(new PrintStream(outputStream));
+
+            GETClient.main(new String[]{"localhost", String.valueOf(silentServer.getLocalPort()), "localhost:" + TEST_PORT});
+
+            System.setOut(originalOut);
+            String output = outputStream.toString();
+            assertTrue(output.contains("HTTP/1.1 200 OK"));
+            assertTrue(output.contains("{\"weather\":\"Sunny\"}"));
+        }
+    }
+
     // Edge Case: Simulate request timeout (Test by simulating slow server response)
     @Test(timeout = 2000) 
     public void testRequestTimeout() throws Exception {
@@ -0,0 +1,58 @@
+import java.util.ArrayList; // Snapshot of the stored records
+import java.util.List; // Snapshot of the stored records
+import java.util.Map; // Entries visited by the expiry sweep
+import java.util.concurrent.ConcurrentHashMap; // Thread safe map of station id to record
+import java.util.function.BiConsumer; // Callback for every expired station
+
+// Weather store backed by a ConcurrentHashMap on the Java heap
+public class HeapWeatherStore implements WeatherStore {
+    // ConcurrentHashMap for storing weather data - Take key as ID
+    private final ConcurrentHashMap<String, AggregationServer.WeatherRecord> weatherDataMap = new ConcurrentHashMap<>();
+
+    @Override
+    public void put(String id, CompactWeatherRecord record, long timestamp) {
+        weatherDataMap.put(id, new AggregationServer.WeatherRecord(record, timestamp));
+    }
+
+    @Override
+    public AggregationServer.WeatherRecord get(String id) {
+        return weatherDataMap.get(id);
+    }
+
+    @Override
+    public List<AggregationServer.WeatherRecord> values() {
+        return new ArrayList<>(weatherDataMap.values());
+    }
+
+    @Override
+    public void removeExpired(long cutoff, BiConsumer<String, Long> onRemove) {
+        // Entries are only removed if they have not been replaced meanwhile, and onRemove runs after the removal
+        // so nothing it changes (like the data version) can be seen before the record is gone
+        for (Map.Entry<String, AggregationServer.WeatherRecord> entry : weatherDataMap.entrySet()) {
+            AggregationServer.WeatherRecord record = entry.getValue();
+            if (record.getTimestamp() < cutoff && weatherDataMap.remove(entry.getKey(), record)) {
+                onRemove.accept(entry.getKey(), record.getTimestamp());
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return weatherDataMap.size();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (AggregationServer.WeatherRecord record : weatherDataMap.values()) {
+            // Record plus its map node
+            bytes += record.getCompactRecord().estimatedBytes() + 56;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String name() {
+        return "heap";
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.*; // Streams messages are written to and read from
+import java.net.Socket; // To set TCP_NODELAY on connections
+import java.net.SocketException; // Thrown when a socket option cannot be set
+import java.nio.charset.StandardCharsets; // Messages are encoded as UTF-8
+import java.util.Map; // Header names and values
+import java.util.TreeMap; // Case-insensitive header names
+
+// An HTTP/1.1 request or response (start line, headers and body) assembled in one pooled byte buffer and sent with a
+// single write, instead of one autoflushed write per header line. Content-Length is the length of the encoded body,
+// and the read helpers work on bytes so a body of Content-Length bytes is read exactly.
+public class HttpMessage {
+    // Whether Nagle's algorithm is disabled on connections, -Dtcp.nodelay (default true).
+    // A message is already one write, so there is nothing for Nagle to coalesce and it would only delay the reply.
+    static final boolean TCP_NODELAY = Boolean.parseBoolean(System.getProperty("tcp.nodelay", "true"));
+    // Longest request or header line, longest header block and largest body that are read,
+    // -Dhttp.max.line.bytes, -Dhttp.max.header.bytes and -Dhttp.max.body.bytes
+    static final int MAX_LINE_BYTES = Integer.getInteger("http.max.line.bytes", 8192);
+    static final int MAX_HEADER_BYTES = Integer.getInteger("http.max.header.bytes", 32768);
+    static final int MAX_BODY_BYTES = Integer.getInteger("http.max.body.bytes", 1024 * 1024);
+    private static final String HEADERS_TOO_LARGE = "HTTP/1.1 431 Request Header Fields Too Large";
+    private static final byte[] CRLF = {'\r', '\n'};
+    // Initial size of a pooled buffer, enough for a header block and a typical station record
+    private static final int INITIAL_BUFFER_BYTES = 8192;
+    // Buffers that grew beyond this for a large body are dropped after use instead of being kept by the thread
+    private static final int MAX_POOLED_BYTES = 1024 * 1024;
+    // One buffer per thread, reused for every message the thread sends
+    private static final ThreadLocal<MessageBuffer> BUFFERS = ThreadLocal.withInitial(() -> new MessageBuffer(INITIAL_BUFFER_BYTES));
+
+    private final MessageBuffer buffer;
+
+    private HttpMessage(String startLine) {
+        buffer = BUFFERS.get();
+        buffer.reset();
+        appendLine(startLine);
+    }
+
+    // Start a message with its request or status line, e.g. "HTTP/1.1 200 OK"
+    static HttpMessage start(String startLine) {
+        return new HttpMessage(startLine);
+    }
+
+    // Apply the TCP_NODELAY setting to a connection
+    static void configure(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(TCP_NODELAY);
+    }
+
+    // Add a header line
+    HttpMessage header(String name, String value) {
+        appendLine(name + ": " + value);
+        return this;
+    }
+
+    // Add the body with its Content-Length in bytes, ending the headers
+    HttpMessage body(String body) {
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        header("Content-Length", String.valueOf(bodyBytes.length));
+        buffer.write(CRLF, 0, CRLF.length);
+        buffer.write(bodyBytes, 0, bodyBytes.length);
+        buffer.hasBody = true;
+        return this;
+    }
+
+    // Send the whole message with one write
+    void send(OutputStream output) throws IOException {
+        if (!buffer.hasBody) {
+            // End of the headers for a message without a body
+            buffer.write(CRLF, 0, CRLF.length);
+        }
+        try {
+            buffer.writeTo(output);
+            output.flush();
+        } finally {
+            if (buffer.capacity() > MAX_POOLED_BYTES) {
+                BUFFERS.remove();
+            }
+        }
+    }
+
+    private void appendLine(String line) {
+        byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+        buffer.write(lineBytes, 0, lineBytes.length);
+        buffer.write(CRLF, 0, CRLF.length);
+    }
+
+    // Read a line ending in "\n" or "\r\n" without the line ending, null at the end of the stream
+    static String readLine(InputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = input.read()) != -1 && b != '\n') {
+            if (line.size() == MAX_LINE_BYTES) {
+                throw new TooLargeException("HTTP/1.1 400 Bad Request", "Line longer than " + MAX_LINE_BYTES + " bytes");
+            }
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        String text = line.toString("UTF-8");
+        return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+    }
+
+    // Read header lines up to the blank line ending them, names are looked up case-insensitively
+    static Map<String, String> readHeaders(InputStream input) throws IOException {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        int headerBytes = 0;
+        String line;
+        while ((line = readHeaderLine(input)) != null && !line.isEmpty()) {
+            headerBytes += line.length() + CRLF.length;
+            if (headerBytes > MAX_HEADER_BYTES) {
+                throw new TooLargeException(HEADERS_TOO_LARGE, "Headers longer than " + MAX_HEADER_BYTES + " bytes");
+            }
+            int separator = line.indexOf(':');
+            if (separator > 0) {
+                headers.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    // A header line over the line limit is answered like a header block over its limit
+    private static String readHeaderLine(InputStream input) throws IOException {
+        try {
+            return readLine(input);
+        } catch (TooLargeException e) {
+            throw new TooLargeException(HEADERS_TOO_LARGE, e.getMessage());
+        }
+    }
+
+    // Read exactly length bytes of a body, EOFException when the stream ends first
+    static byte[] readBody(InputStream input, int length) throws IOException {
+        if (length > MAX_BODY_BYTES) {
+            throw new TooLargeException("HTTP/1.1 413 Payload Too Large", "Body longer than " + MAX_BODY_BYTES + " bytes");
+        }
+        byte[] body = new byte[length];
+        new DataInputStream(input).readFully(body);
+        return body;
+    }
+
+    // Discard length bytes of a body that will not be processed
+    static void skipBody(InputStream input, int length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() == -1) {
+                    return;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    // A line, the header block or the body of a message is over its limit, statusLine is the answer to the request
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final String statusLine;
+
+        TooLargeException(String statusLine, String message) {
+            super(message);
+            this.statusLine = statusLine;
+        }
+    }
+
+    // Byte buffer that exposes its capacity and remembers whether the body was written
+    private static class MessageBuffer extends ByteArrayOutputStream {
+        private boolean hasBody;
+
+        MessageBuffer(int size) {
+            super(size);
+        }
+
+        @Override
+        public synchronized void reset() {
+            super.reset();
+            hasBody = false;
+        }
+
+        int capacity() {
+            return buf.length;
+        }
+    }
+}
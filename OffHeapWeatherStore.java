@@ -0,0 +1,574 @@
+import java.nio.ByteBuffer; // Direct (off-heap) memory segments
+import java.nio.charset.StandardCharsets; // Station ids and text fields are stored as UTF-8
+import java.util.ArrayList; // Snapshot and expiry candidate lists
+import java.util.List; // Snapshot and expiry candidate lists
+import java.util.Map; // Overflow entries visited by the expiry sweep
+import java.util.concurrent.ConcurrentHashMap; // Records that do not fit a slot
+import java.util.concurrent.locks.ReentrantLock; // Serialises writers, including a rehash in progress
+import java.util.concurrent.locks.StampedLock; // Single writer, optimistic lock free readers
+import java.util.function.BiConsumer; // Callback for every expired station
+
+// Weather store that keeps records in direct memory outside the Java heap, so millions of stations
+// do not add millions of objects for the garbage collector to trace.
+//
+// The table is an open-addressing hash index (linear probing) keyed by station id, split over fixed size
+// direct ByteBuffer segments. Every slot has fixed positions for the typed fields of a CompactWeatherRecord:
+//   state | id length | masks | id hash | extras length | timestamp | numerics | dictionary codes | id | extras
+// Writers are serialised by a writer lock and change slots under the write mode of a StampedLock, readers copy a
+// slot with an optimistic read, decode the copy only once the read validated, and fall back to the read lock when
+// a write overlapped. A growing table is filled while only the writer lock is held, readers keep using the old
+// table until the new one is swapped in. Size the table up front with -Doffheap.initial.capacity to avoid growing.
+// Records that do not fit a slot (long id, large or non-text extra fields) are kept in a small on-heap overflow map.
+public class OffHeapWeatherStore implements WeatherStore {
+    // Slot layout
+    private static final int SLOT_SIZE = 320;
+    private static final int OFFSET_STATE = 0;
+    private static final int OFFSET_ID_LENGTH = 1;
+    private static final int OFFSET_PRESENT_MASK = 2;
+    private static final int OFFSET_TEXT_MASK = 4;
+    private static final int OFFSET_INTEGRAL_MASK = 6;
+    private static final int OFFSET_HASH = 8;
+    private static final int OFFSET_EXTRAS_LENGTH = 12;
+    private static final int OFFSET_TIMESTAMP = 16;
+    private static final int OFFSET_NUMERICS = 24;
+    private static final int OFFSET_CODES = OFFSET_NUMERICS + 8 * WeatherFields.NUMERIC_FIELDS.length;
+    private static final int OFFSET_ID = OFFSET_CODES + 4 * WeatherFields.DICTIONARY_FIELDS.length;
+    private static final int MAX_ID_BYTES = 48;
+    private static final int OFFSET_EXTRAS = OFFSET_ID + MAX_ID_BYTES;
+    private static final int EXTRAS_CAPACITY = SLOT_SIZE - OFFSET_EXTRAS;
+
+    // Slot states
+    private static final byte EMPTY = 0;
+    private static final byte USED = 1;
+    private static final byte DELETED = 2;
+
+    // 4096 slots of 320 bytes = 1.25 MB per segment, also the smallest table, which every feed allocates up front
+    private static final int SEGMENT_SHIFT = 12;
+    private static final int SLOTS_PER_SEGMENT = 1 << SEGMENT_SHIFT;
+    private static final double LOAD_FACTOR = 0.7;
+    // Expired slots removed per write lock acquisition
+    private static final int REMOVE_BATCH = 1024;
+
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private final StampedLock lock = new StampedLock();
+    // Table state, changed only under both locks
+    private ByteBuffer[] segments;
+    private int capacity;
+    private int used;
+    private int deleted;
+    // Records that do not fit a slot
+    private final ConcurrentHashMap<String, AggregationServer.WeatherRecord> overflow = new ConcurrentHashMap<>();
+
+    // Table sized for -Doffheap.initial.capacity stations (default one segment)
+    public OffHeapWeatherStore() {
+        this((int) Math.ceil(Integer.getInteger("offheap.initial.capacity", 0) / LOAD_FACTOR));
+    }
+
+    public OffHeapWeatherStore(int initialCapacity) {
+        int tableCapacity = SLOTS_PER_SEGMENT;
+        while (tableCapacity < initialCapacity) {
+            tableCapacity <<= 1;
+        }
+        capacity = tableCapacity;
+        segments = allocateSegments(tableCapacity);
+    }
+
+    @Override
+    public void put(String id, CompactWeatherRecord record, long timestamp) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] extras = encodeExtras(record.getExtras());
+        int hash = hash(id);
+
+        writerLock.lock();
+        long stamp = 0;
+        try {
+            if (idBytes.length > MAX_ID_BYTES || extras == null) {
+                stamp = lock.writeLock();
+                removeSlot(idBytes, hash);
+                overflow.put(id, new AggregationServer.WeatherRecord(record, timestamp));
+                return;
+            }
+            overflow.remove(id);
+
+            if (used + deleted + 1 > capacity * LOAD_FACTOR) {
+                // Grow when mostly live entries, otherwise just rehash to clear tombstones.
+                // The copy only reads the current table, which no other writer can change, so readers are not blocked.
+                ByteBuffer[] newSegments = rehash(used + 1 > capacity * LOAD_FACTOR / 2 ? capacity * 2 : capacity);
+                stamp = lock.writeLock();
+                segments = newSegments;
+                capacity = newSegments.length * SLOTS_PER_SEGMENT;
+                deleted = 0;
+            } else {
+                stamp = lock.writeLock();
+            }
+
+            int slot = insertionSlot(idBytes, hash);
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            byte state = segment.get(offset + OFFSET_STATE);
+            if (state != USED) {
+                used++;
+                if (state == DELETED) {
+                    deleted--;
+                }
+            }
+            writeSlot(segment, offset, idBytes, hash, record, timestamp, extras);
+        } finally {
+            if (stamp != 0) {
+                lock.unlockWrite(stamp);
+            }
+            writerLock.unlock();
+        }
+    }
+
+    @Override
+    public AggregationServer.WeatherRecord get(String id) {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(id);
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                byte[] slotCopy = find(idBytes, hash);
+                AggregationServer.WeatherRecord overflowRecord = slotCopy == null ? overflow.get(id) : null;
+                if (lock.validate(stamp)) {
+                    // The copy is consistent, decode it without holding anything
+                    return slotCopy != null ? decodeSlot(ByteBuffer.wrap(slotCopy), 0) : overflowRecord;
+                }
+            } catch (RuntimeException e) {
+                // Torn read while a writer changed the slot, retry under the read lock
+            }
+        }
+
+        byte[] slotCopy;
+        stamp = lock.readLock();
+        try {
+            slotCopy = find(idBytes, hash);
+            if (slotCopy == null) {
+                return overflow.get(id);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return decodeSlot(ByteBuffer.wrap(slotCopy), 0);
+    }
+
+    @Override
+    public List<AggregationServer.WeatherRecord> values() {
+        List<AggregationServer.WeatherRecord> records = new ArrayList<>();
+        ByteBuffer[] tableSegments;
+        int tableCapacity;
+        long stamp = lock.readLock();
+        try {
+            tableSegments = segments;
+            tableCapacity = capacity;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        // Segments replaced by a rehash are never written again, so reading them stays consistent
+        for (int slot = 0; slot < tableCapacity; slot++) {
+            AggregationServer.WeatherRecord record = readSlot(tableSegments, slot);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        records.addAll(overflow.values());
+        return records;
+    }
+
+    @Override
+    public void removeExpired(long cutoff, BiConsumer<String, Long> onRemove) {
+        ByteBuffer[] tableSegments;
+        int tableCapacity;
+        long stamp = lock.readLock();
+        try {
+            tableSegments = segments;
+            tableCapacity = capacity;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+
+        // Find candidates without blocking readers or writers. Only the timestamp is read in place, nothing is
+        // decoded for records that stay and only the id of an expired one is copied.
+        List<ExpiredSlot> expired = new ArrayList<>();
+        for (int slot = 0; slot < tableCapacity; slot++) {
+            ExpiredSlot expiredSlot = readIfExpired(tableSegments, slot, cutoff);
+            if (expiredSlot != null) {
+                expired.add(expiredSlot);
+            }
+        }
+
+        // Remove them in batches, skipping stations that have been updated meanwhile.
+        // onRemove runs after each batch is unlocked, so it may use the store.
+        List<ExpiredSlot> removed = new ArrayList<>();
+        for (int start = 0; start < expired.size(); start += REMOVE_BATCH) {
+            removed.clear();
+            writerLock.lock();
+            stamp = lock.writeLock();
+            try {
+                for (int i = start; i < Math.min(expired.size(), start + REMOVE_BATCH); i++) {
+                    ExpiredSlot expiredSlot = expired.get(i);
+                    if (removeSlotIfUnchanged(expiredSlot.idBytes, expiredSlot.hash, expiredSlot.timestamp)) {
+                        removed.add(expiredSlot);
+                    }
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+                writerLock.unlock();
+            }
+            for (ExpiredSlot expiredSlot : removed) {
+                onRemove.accept(new String(expiredSlot.idBytes, StandardCharsets.UTF_8), expiredSlot.timestamp);
+            }
+        }
+
+        // Overflow records are also reported only once they are gone
+        for (Map.Entry<String, AggregationServer.WeatherRecord> entry : overflow.entrySet()) {
+            AggregationServer.WeatherRecord record = entry.getValue();
+            if (record.getTimestamp() < cutoff && overflow.remove(entry.getKey(), record)) {
+                onRemove.accept(entry.getKey(), record.getTimestamp());
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return used + overflow.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public long estimatedBytes() {
+        long bytes;
+        long stamp = lock.readLock();
+        try {
+            bytes = (long) capacity * SLOT_SIZE;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (AggregationServer.WeatherRecord record : overflow.values()) {
+            bytes += record.getCompactRecord().estimatedBytes() + 56;
+        }
+        return bytes;
+    }
+
+    @Override
+    public String name() {
+        return "offheap";
+    }
+
+    // Read one slot with an optimistic read, falling back to the read lock if a writer interfered
+    private AggregationServer.WeatherRecord readSlot(ByteBuffer[] tableSegments, int slot) {
+        ByteBuffer segment = tableSegments[slot >>> SEGMENT_SHIFT];
+        int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+
+        byte[] slotCopy = null;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            slotCopy = segment.get(offset + OFFSET_STATE) == USED ? copySlot(segment, offset) : null;
+            if (!lock.validate(stamp)) {
+                // Torn read, retry under the read lock
+                stamp = 0;
+            }
+        }
+        if (stamp == 0) {
+            stamp = lock.readLock();
+            try {
+                slotCopy = segment.get(offset + OFFSET_STATE) == USED ? copySlot(segment, offset) : null;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return slotCopy != null ? decodeSlot(ByteBuffer.wrap(slotCopy), 0) : null;
+    }
+
+    // Id, hash and timestamp of a used slot older than cutoff, null for any other slot.
+    // Read in place with an optimistic read, falling back to the read lock if a writer interfered.
+    private ExpiredSlot readIfExpired(ByteBuffer[] tableSegments, int slot, long cutoff) {
+        ByteBuffer segment = tableSegments[slot >>> SEGMENT_SHIFT];
+        int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            ExpiredSlot expiredSlot = expiredSlotAt(segment, offset, cutoff);
+            if (lock.validate(stamp)) {
+                return expiredSlot;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return expiredSlotAt(segment, offset, cutoff);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static ExpiredSlot expiredSlotAt(ByteBuffer segment, int offset, long cutoff) {
+        if (segment.get(offset + OFFSET_STATE) != USED || segment.getLong(offset + OFFSET_TIMESTAMP) >= cutoff) {
+            return null;
+        }
+        int idLength = Math.min(segment.get(offset + OFFSET_ID_LENGTH) & 0xFF, MAX_ID_BYTES);
+        return new ExpiredSlot(getBytes(segment, offset + OFFSET_ID, idLength), segment.getInt(offset + OFFSET_HASH),
+                               segment.getLong(offset + OFFSET_TIMESTAMP));
+    }
+
+    // Copy of the slot stored under the id, or null. May see torn data when called without a lock,
+    // callers validate before decoding the copy.
+    private byte[] find(byte[] idBytes, int hash) {
+        ByteBuffer[] tableSegments = segments;
+        int mask = capacity - 1;
+        for (int probe = 0, slot = hash & mask; probe <= mask; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = tableSegments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            byte state = segment.get(offset + OFFSET_STATE);
+            if (state == EMPTY) {
+                return null;
+            }
+            if (state == USED && matches(segment, offset, idBytes, hash)) {
+                return copySlot(segment, offset);
+            }
+        }
+        return null;
+    }
+
+    // Slot of an existing entry for the id, otherwise the first reusable slot on its probe path
+    private int insertionSlot(byte[] idBytes, int hash) {
+        int mask = capacity - 1;
+        int firstDeleted = -1;
+        for (int probe = 0, slot = hash & mask; probe <= mask; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            byte state = segment.get(offset + OFFSET_STATE);
+            if (state == EMPTY) {
+                return firstDeleted >= 0 ? firstDeleted : slot;
+            }
+            if (state == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = slot;
+                }
+            } else if (matches(segment, offset, idBytes, hash)) {
+                return slot;
+            }
+        }
+        return firstDeleted;
+    }
+
+    // Mark the entry of the id as deleted, returns its slot or -1. Write lock held.
+    private int removeSlot(byte[] idBytes, int hash) {
+        int mask = capacity - 1;
+        for (int probe = 0, slot = hash & mask; probe <= mask; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            byte state = segment.get(offset + OFFSET_STATE);
+            if (state == EMPTY) {
+                return -1;
+            }
+            if (state == USED && matches(segment, offset, idBytes, hash)) {
+                segment.put(offset + OFFSET_STATE, DELETED);
+                used--;
+                deleted++;
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Remove the entry only if it still holds the record with the given timestamp. Write lock held.
+    private boolean removeSlotIfUnchanged(byte[] idBytes, int hash, long timestamp) {
+        int mask = capacity - 1;
+        for (int probe = 0, slot = hash & mask; probe <= mask; probe++, slot = (slot + 1) & mask) {
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            byte state = segment.get(offset + OFFSET_STATE);
+            if (state == EMPTY) {
+                return false;
+            }
+            if (state == USED && matches(segment, offset, idBytes, hash)) {
+                if (segment.getLong(offset + OFFSET_TIMESTAMP) != timestamp) {
+                    return false;
+                }
+                segment.put(offset + OFFSET_STATE, DELETED);
+                used--;
+                deleted++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Copy every live slot into a fresh table. Writer lock held, readers keep using the current table.
+    private ByteBuffer[] rehash(int newCapacity) {
+        ByteBuffer[] newSegments = allocateSegments(newCapacity);
+        int newMask = newCapacity - 1;
+        for (int slot = 0; slot < capacity; slot++) {
+            ByteBuffer segment = segments[slot >>> SEGMENT_SHIFT];
+            int offset = (slot & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            if (segment.get(offset + OFFSET_STATE) != USED) {
+                continue;
+            }
+            int target = segment.getInt(offset + OFFSET_HASH) & newMask;
+            while (newSegments[target >>> SEGMENT_SHIFT].get((target & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE + OFFSET_STATE) != EMPTY) {
+                target = (target + 1) & newMask;
+            }
+            ByteBuffer newSegment = newSegments[target >>> SEGMENT_SHIFT];
+            int newOffset = (target & (SLOTS_PER_SEGMENT - 1)) * SLOT_SIZE;
+            for (int i = 0; i < SLOT_SIZE; i += 8) {
+                newSegment.putLong(newOffset + i, segment.getLong(offset + i));
+            }
+        }
+        return newSegments;
+    }
+
+    private static ByteBuffer[] allocateSegments(int tableCapacity) {
+        ByteBuffer[] tableSegments = new ByteBuffer[tableCapacity / SLOTS_PER_SEGMENT];
+        for (int i = 0; i < tableSegments.length; i++) {
+            tableSegments[i] = ByteBuffer.allocateDirect(SLOTS_PER_SEGMENT * SLOT_SIZE);
+        }
+        return tableSegments;
+    }
+
+    private static void writeSlot(ByteBuffer segment, int offset, byte[] idBytes, int hash,
+                                  CompactWeatherRecord record, long timestamp, byte[] extras) {
+        segment.put(offset + OFFSET_ID_LENGTH, (byte) idBytes.length);
+        segment.putShort(offset + OFFSET_PRESENT_MASK, record.getPresentMask());
+        segment.putShort(offset + OFFSET_TEXT_MASK, record.getTextMask());
+        segment.putShort(offset + OFFSET_INTEGRAL_MASK, record.getIntegralMask());
+        segment.putInt(offset + OFFSET_HASH, hash);
+        segment.putShort(offset + OFFSET_EXTRAS_LENGTH, (short) extras.length);
+        segment.putLong(offset + OFFSET_TIMESTAMP, timestamp);
+        double[] numerics = record.getNumerics();
+        for (int i = 0; i < numerics.length; i++) {
+            segment.putDouble(offset + OFFSET_NUMERICS + 8 * i, numerics[i]);
+        }
+        int[] codes = record.getCodes();
+        for (int i = 0; i < codes.length; i++) {
+            segment.putInt(offset + OFFSET_CODES + 4 * i, codes[i]);
+        }
+        putBytes(segment, offset + OFFSET_ID, idBytes, 0, idBytes.length);
+        putBytes(segment, offset + OFFSET_EXTRAS, extras, 0, extras.length);
+        segment.put(offset + OFFSET_STATE, USED);
+    }
+
+    // Bulk copy of one slot, so it can be validated before anything is decoded from it
+    private static byte[] copySlot(ByteBuffer segment, int offset) {
+        byte[] slotCopy = new byte[SLOT_SIZE];
+        ByteBuffer view = segment.duplicate();
+        view.position(offset);
+        view.get(slotCopy);
+        return slotCopy;
+    }
+
+    private static AggregationServer.WeatherRecord decodeSlot(ByteBuffer segment, int offset) {
+        int idLength = Math.min(segment.get(offset + OFFSET_ID_LENGTH) & 0xFF, MAX_ID_BYTES);
+        String id = new String(getBytes(segment, offset + OFFSET_ID, idLength), StandardCharsets.UTF_8);
+
+        double[] numerics = new double[WeatherFields.NUMERIC_FIELDS.length];
+        for (int i = 0; i < numerics.length; i++) {
+            numerics[i] = segment.getDouble(offset + OFFSET_NUMERICS + 8 * i);
+        }
+        int[] codes = new int[WeatherFields.DICTIONARY_FIELDS.length];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = segment.getInt(offset + OFFSET_CODES + 4 * i);
+        }
+
+        int extrasLength = Math.min(segment.getShort(offset + OFFSET_EXTRAS_LENGTH) & 0xFFFF, EXTRAS_CAPACITY);
+        Object[] extras = decodeExtras(getBytes(segment, offset + OFFSET_EXTRAS, extrasLength));
+
+        CompactWeatherRecord record = new CompactWeatherRecord(id, numerics, codes,
+            segment.getShort(offset + OFFSET_PRESENT_MASK), segment.getShort(offset + OFFSET_TEXT_MASK),
+            segment.getShort(offset + OFFSET_INTEGRAL_MASK), extras);
+        return new AggregationServer.WeatherRecord(record, segment.getLong(offset + OFFSET_TIMESTAMP));
+    }
+
+    private static boolean matches(ByteBuffer segment, int offset, byte[] idBytes, int hash) {
+        if (segment.getInt(offset + OFFSET_HASH) != hash || (segment.get(offset + OFFSET_ID_LENGTH) & 0xFF) != idBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < idBytes.length; i++) {
+            if (segment.get(offset + OFFSET_ID + i) != idBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Extra fields as (short length, UTF-8 bytes) name/value pairs, or null when they are not all text or do not fit
+    private static byte[] encodeExtras(Object[] extras) {
+        if (extras == null) {
+            return new byte[0];
+        }
+        byte[][] parts = new byte[extras.length][];
+        int length = 0;
+        for (int i = 0; i < extras.length; i++) {
+            if (!(extras[i] instanceof String)) {
+                return null;
+            }
+            parts[i] = ((String) extras[i]).getBytes(StandardCharsets.UTF_8);
+            length += 2 + parts[i].length;
+        }
+        if (length > EXTRAS_CAPACITY) {
+            return null;
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            encoded.putShort((short) part.length);
+            encoded.put(part);
+        }
+        return encoded.array();
+    }
+
+    private static Object[] decodeExtras(byte[] encoded) {
+        if (encoded.length == 0) {
+            return null;
+        }
+        List<Object> extras = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        while (buffer.hasRemaining()) {
+            byte[] part = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(part);
+            String value = new String(part, StandardCharsets.UTF_8);
+            // Field names are shared
+            extras.add(extras.size() % 2 == 0 ? CompactWeatherRecord.FIELD_NAMES.intern(value) : value);
+        }
+        if (extras.size() % 2 != 0) {
+            throw new IllegalStateException("Corrupt extras");
+        }
+        return extras.toArray();
+    }
+
+    private static void putBytes(ByteBuffer segment, int offset, byte[] bytes, int from, int length) {
+        for (int i = 0; i < length; i++) {
+            segment.put(offset + i, bytes[from + i]);
+        }
+    }
+
+    private static byte[] getBytes(ByteBuffer segment, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = segment.get(offset + i);
+        }
+        return bytes;
+    }
+
+    private static int hash(String id) {
+        int h = id.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // Id of an expired slot, with the hash and timestamp it had when the sweep saw it
+    private static class ExpiredSlot {
+        final byte[] idBytes;
+        final int hash;
+        final long timestamp;
+
+        ExpiredSlot(byte[] idBytes, int hash, long timestamp) {
+            this.idBytes = idBytes;
+            this.hash = hash;
+            this.timestamp = timestamp;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+import java.util.Map; // Entries of the bucket map when evicting
+import java.util.concurrent.ConcurrentHashMap; // Thread safe maps of source to its bucket and address to its id count
+import java.util.concurrent.atomic.LongAdder; // Allowed and limited counters
+import org.json.JSONObject; // Counters for GET /stats
+
+// Token bucket rate limiter per source, a client address or a content server id sent from that address.
+// Every source may send `ratePerSecond` requests per second on average with bursts of up to `burst` requests.
+// Ids are chosen by the client, so one address only gets buckets for its first `maxIdsPerAddress` ids; requests
+// with further ids share the bucket of the address, and switching ids cannot buy fresh tokens or grow the map.
+// Rate and burst can be changed at runtime and apply to all sources immediately.
+public class RateLimiter {
+    // Buckets idle for this long are full again and can be forgotten
+    private static final long IDLE_BUCKET_MS = 60000;
+
+    private volatile double ratePerSecond;
+    private volatile double burst;
+    private final int maxIdsPerAddress;
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    // Number of id buckets of every address
+    private final ConcurrentHashMap<String, Integer> idsPerAddress = new ConcurrentHashMap<>();
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+
+    public RateLimiter(double ratePerSecond, double burst, int maxIdsPerAddress) {
+        setLimits(ratePerSecond, burst);
+        this.maxIdsPerAddress = maxIdsPerAddress;
+    }
+
+    // Create a limiter configured from system properties, -Dratelimit.put.per.second, -Dratelimit.put.burst
+    // and -Dratelimit.ids.per.address
+    static RateLimiter fromSystemProperties() {
+        return new RateLimiter(Double.parseDouble(System.getProperty("ratelimit.put.per.second", "50")),
+                               Double.parseDouble(System.getProperty("ratelimit.put.burst", "100")),
+                               Integer.getInteger("ratelimit.ids.per.address", 16));
+    }
+
+    // Change the limits of every source
+    void setLimits(double ratePerSecond, double burst) {
+        if (!(ratePerSecond > 0) || !(burst >= 1)) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.burst = burst;
+    }
+
+    double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    double getBurst() {
+        return burst;
+    }
+
+    // Take a token for the source, sourceId may be null. Returns 0 when allowed, otherwise the milliseconds until a
+    // token is available.
+    long tryAcquire(String address, String sourceId, long currentTime) {
+        Bucket bucket = sourceId == null ? null : buckets.get(address + " " + sourceId);
+        if (bucket == null && sourceId != null) {
+            // A new id only gets a bucket while the address is under its id cap
+            bucket = buckets.computeIfAbsent(address + " " + sourceId,
+                                             key -> reserveId(address) ? new Bucket(burst, currentTime, address) : null);
+        }
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(address, key -> new Bucket(burst, currentTime, null));
+        }
+        long waitMs = bucket.tryTake(currentTime, ratePerSecond, burst);
+        (waitMs == 0 ? allowed : limited).increment();
+        return waitMs;
+    }
+
+    // Forget sources that have been idle long enough for their bucket to be full again
+    void evictIdle(long currentTime) {
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            if (bucket.idleSince(currentTime) > IDLE_BUCKET_MS && buckets.remove(entry.getKey(), bucket)
+                    && bucket.idAddress != null) {
+                idsPerAddress.computeIfPresent(bucket.idAddress, (address, count) -> count == 1 ? null : count - 1);
+            }
+        }
+    }
+
+    // Count one more id bucket for the address, false when it already has its maximum
+    private boolean reserveId(String address) {
+        boolean[] reserved = new boolean[1];
+        idsPerAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            reserved[0] = current < maxIdsPerAddress;
+            return reserved[0] ? current + 1 : count;
+        });
+        return reserved[0];
+    }
+
+    // Limits and counters for GET /stats
+    JSONObject toJson() {
+        JSONObject statsJson = new JSONObject();
+        statsJson.put("rate_per_second", ratePerSecond);
+        statsJson.put("burst", burst);
+        statsJson.put("ids_per_address", maxIdsPerAddress);
+        statsJson.put("sources", buckets.size());
+        statsJson.put("allowed", allowed.sum());
+        statsJson.put("limited", limited.sum());
+        return statsJson;
+    }
+
+    // Tokens of one source, refilled lazily from the elapsed time
+    private static class Bucket {
+        // Address whose id count this bucket takes up, null for the bucket of an address itself
+        final String idAddress;
+        private double tokens;
+        private long lastRefill;
+
+        Bucket(double tokens, long currentTime, String idAddress) {
+            this.tokens = tokens;
+            this.lastRefill = currentTime;
+            this.idAddress = idAddress;
+        }
+
+        synchronized long tryTake(long currentTime, double ratePerSecond, double burst) {
+            tokens = Math.min(burst, tokens + (currentTime - lastRefill) * ratePerSecond / 1000.0);
+            lastRefill = Math.max(lastRefill, currentTime);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return 0;
+            }
+            return Math.max(1, (long) Math.ceil((1 - tokens) * 1000.0 / ratePerSecond));
+        }
+
+        synchronized long idleSince(long currentTime) {
+            return currentTime - lastRefill;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+import java.util.ArrayList; // Candidate lists
+import java.util.Collections; // To sort candidates by distance
+import java.util.List; // Query results
+import java.util.Map; // Brute force scan over positions
+import java.util.Set; // Station ids of one grid cell
+import java.util.concurrent.ConcurrentHashMap; // Thread safe cells and positions
+
+// Grid index over station lat/lon for nearest-station and bounding-box queries.
+// The globe is cut into square cells of a configurable size in degrees, each cell keeps the ids of the stations inside it.
+// Queries only visit the cells around the requested area instead of scanning every station.
+public class SpatialIndex {
+    // Mean earth radius for great-circle distances
+    private static final double EARTH_RADIUS_KM = 6371.0;
+    private static final double KM_PER_DEGREE = Math.PI * EARTH_RADIUS_KM / 180.0;
+
+    private final double cellDegrees;
+    private final int latCells;
+    private final int lonCells;
+    // Cell key to the ids of the stations in that cell
+    private final ConcurrentHashMap<Long, Set<String>> cells = new ConcurrentHashMap<>();
+    // Station id to its indexed position
+    private final ConcurrentHashMap<String, Position> positions = new ConcurrentHashMap<>();
+
+    public SpatialIndex(double cellDegrees) {
+        if (!(cellDegrees > 0 && cellDegrees <= 180)) {
+            throw new IllegalArgumentException("Cell size must be between 0 and 180 degrees");
+        }
+        this.cellDegrees = cellDegrees;
+        this.latCells = (int) Math.ceil(180 / cellDegrees);
+        this.lonCells = (int) Math.ceil(360 / cellDegrees);
+    }
+
+    // Create an index configured from system properties, -Dspatial.cell.degrees (default 1 degree)
+    static SpatialIndex fromSystemProperties() {
+        return new SpatialIndex(Double.parseDouble(System.getProperty("spatial.cell.degrees", "1.0")));
+    }
+
+    // Index or move a station. The version (the record's receive time) lets remove() skip newer updates.
+    void update(String id, double lat, double lon, long version) {
+        if (Double.isNaN(lat) || Double.isNaN(lon) || Math.abs(lat) > 90 || Math.abs(lon) > 180) {
+            remove(id, version);
+            return;
+        }
+        long cell = cellKey(latCell(lat), lonCell(lon));
+        positions.compute(id, (key, previous) -> {
+            if (previous != null && previous.cell != cell) {
+                removeFromCell(previous.cell, id);
+            }
+            addToCell(cell, id);
+            return new Position(lat, lon, cell, version);
+        });
+    }
+
+    // Remove a station unless it has been updated since the given version
+    void remove(String id, long version) {
+        positions.computeIfPresent(id, (key, position) -> {
+            if (position.version > version) {
+                return position;
+            }
+            removeFromCell(position.cell, id);
+            return null;
+        });
+    }
+
+    // The k stations closest to lat/lon, nearest first
+    List<String> nearest(double lat, double lon, int k) {
+        List<Candidate> candidates = new ArrayList<>();
+        int centerLat = latCell(lat);
+        int centerLon = lonCell(lon);
+        int maxRing = latCells;
+        long visitedCells = 0;
+
+        for (int ring = 0; ring <= maxRing; ring++) {
+            // Sparse data: once we visit more cells than there are stations, a plain scan is cheaper.
+            // The same applies once the ring wraps all the way around in longitude.
+            visitedCells += ring == 0 ? 1 : 8L * ring;
+            if (visitedCells > positions.size() || 2 * ring + 1 > lonCells) {
+                return closest(scanAll(lat, lon), k);
+            }
+
+            for (int dLat = -ring; dLat <= ring; dLat++) {
+                for (int dLon = -ring; dLon <= ring; dLon++) {
+                    // Only the border of the square belongs to this ring
+                    if (Math.abs(dLat) != ring && Math.abs(dLon) != ring) {
+                        continue;
+                    }
+                    addCandidates(centerLat + dLat, centerLon + dLon, lat, lon, candidates);
+                }
+            }
+
+            // Stop once the k-th candidate is closer than anything the next ring could hold
+            if (candidates.size() >= k && kthDistance(candidates, k) <= ringDistanceKm(lat, ring)) {
+                break;
+            }
+        }
+        return closest(candidates, k);
+    }
+
+    // Stations inside the box, minLon > maxLon means the box crosses the antimeridian
+    List<String> withinBox(double minLat, double minLon, double maxLat, double maxLon) {
+        List<String> result = new ArrayList<>();
+        int fromLat = latCell(Math.max(-90, minLat));
+        int toLat = latCell(Math.min(90, maxLat));
+        int fromLon = lonCell(minLon);
+        int toLon = lonCell(maxLon);
+        // A box as wide as the globe visits every column, not the one its wrapped ends share
+        int lonSpan = maxLon - minLon >= 360 ? lonCells : (toLon - fromLon + lonCells) % lonCells + 1;
+
+        // A box covering more cells than there are stations is answered with a plain scan
+        if ((long) (toLat - fromLat + 1) * lonSpan > positions.size()) {
+            for (Map.Entry<String, Position> entry : positions.entrySet()) {
+                if (entry.getValue().inBox(minLat, minLon, maxLat, maxLon)) {
+                    result.add(entry.getKey());
+                }
+            }
+            return result;
+        }
+
+        for (int latIndex = fromLat; latIndex <= toLat; latIndex++) {
+            for (int i = 0; i < lonSpan; i++) {
+                Set<String> ids = cells.get(cellKey(latIndex, (fromLon + i) % lonCells));
+                if (ids == null) {
+                    continue;
+                }
+                for (String id : ids) {
+                    Position position = positions.get(id);
+                    if (position != null && position.inBox(minLat, minLon, maxLat, maxLon)) {
+                        result.add(id);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    // Number of indexed stations
+    int size() {
+        return positions.size();
+    }
+
+    // Great-circle distance in km (haversine)
+    static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                 + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 2 * EARTH_RADIUS_KM * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    private void addCandidates(int latIndex, int lonIndex, double lat, double lon, List<Candidate> candidates) {
+        if (latIndex < 0 || latIndex >= latCells) {
+            return;
+        }
+        // Longitude wraps around
+        Set<String> ids = cells.get(cellKey(latIndex, Math.floorMod(lonIndex, lonCells)));
+        if (ids == null) {
+            return;
+        }
+        for (String id : ids) {
+            Position position = positions.get(id);
+            if (position != null) {
+                candidates.add(new Candidate(id, distanceKm(lat, lon, position.lat, position.lon)));
+            }
+        }
+    }
+
+    private List<Candidate> scanAll(double lat, double lon) {
+        List<Candidate> candidates = new ArrayList<>();
+        for (Map.Entry<String, Position> entry : positions.entrySet()) {
+            Position position = entry.getValue();
+            candidates.add(new Candidate(entry.getKey(), distanceKm(lat, lon, position.lat, position.lon)));
+        }
+        return candidates;
+    }
+
+    // Lower bound of the distance from the query point to any cell beyond the given ring.
+    // Longitude degrees shrink towards the poles, so use the widest latitude the next ring can reach.
+    private double ringDistanceKm(double lat, int ring) {
+        double farthestLat = Math.min(90, Math.abs(lat) + (ring + 1) * cellDegrees);
+        return ring * cellDegrees * KM_PER_DEGREE * Math.cos(Math.toRadians(farthestLat));
+    }
+
+    private static double kthDistance(List<Candidate> candidates, int k) {
+        Collections.sort(candidates);
+        return candidates.get(k - 1).distanceKm;
+    }
+
+    private static List<String> closest(List<Candidate> candidates, int k) {
+        Collections.sort(candidates);
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < Math.min(k, candidates.size()); i++) {
+            ids.add(candidates.get(i).id);
+        }
+        return ids;
+    }
+
+    // Both cell updates go through compute() so an emptied cell is never dropped while an id is being added
+    private void addToCell(long cell, String id) {
+        cells.compute(cell, (key, ids) -> {
+            if (ids == null) {
+                ids = ConcurrentHashMap.newKeySet();
+            }
+            ids.add(id);
+            return ids;
+        });
+    }
+
+    private void removeFromCell(long cell, String id) {
+        cells.computeIfPresent(cell, (key, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private int latCell(double lat) {
+        return Math.min(latCells - 1, (int) Math.floor((lat + 90) / cellDegrees));
+    }
+
+    // 180 belongs to the last column (like 90 to the last row), so a box ending at 180 does not wrap to column 0
+    private int lonCell(double lon) {
+        if (lon == 180) {
+            return lonCells - 1;
+        }
+        return Math.floorMod((int) Math.floor((lon + 180) / cellDegrees), lonCells);
+    }
+
+    private static long cellKey(int latIndex, int lonIndex) {
+        return ((long) latIndex << 32) | lonIndex;
+    }
+
+    // Indexed location of a station
+    private static class Position {
+        final double lat;
+        final double lon;
+        final long cell;
+        final long version;
+
+        Position(double lat, double lon, long cell, long version) {
+            this.lat = lat;
+            this.lon = lon;
+            this.cell = cell;
+            this.version = version;
+        }
+
+        boolean inBox(double minLat, double minLon, double maxLat, double maxLon) {
+            if (lat < minLat || lat > maxLat) {
+                return false;
+            }
+            return minLon <= maxLon ? (lon >= minLon && lon <= maxLon) : (lon >= minLon || lon <= maxLon);
+        }
+    }
+
+    // Station with its distance to the query point
+    private static class Candidate implements Comparable<Candidate> {
+        final String id;
+        final double distanceKm;
+
+        Candidate(String id, double distanceKm) {
+            this.id = id;
+            this.distanceKm = distanceKm;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(distanceKm, other.distanceKm);
+        }
+    }
+}
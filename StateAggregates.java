@@ -0,0 +1,263 @@
+import java.util.ArrayList; // Value multisets of a bucket, one per field
+import java.util.Arrays; // To initialise the merged min and max
+import java.util.List; // Value multisets of a bucket, one per field
+import java.util.Map; // Iterate over the groups when answering a query
+import java.util.TreeMap; // Ordered multiset of values for min and max
+import java.util.concurrent.ConcurrentHashMap; // Thread safe maps of state to its accumulators and station to its contribution
+import java.util.concurrent.atomic.AtomicReferenceArray; // Ring of time buckets replaced without locks
+import org.json.JSONObject; // Query response
+
+// Incrementally maintained min/max/avg of a few numeric fields per state over the current records updated in a window.
+// Every group keeps a ring of fixed width time buckets, a station's record is counted in the bucket of its latest update
+// and taken out again when the station is updated or its record expires, and a window query merges the buckets it
+// covers, so answering costs O(groups), not O(stations). Count and sum are subtracted directly, min and max come from
+// an ordered multiset of the values in the bucket.
+public class StateAggregates {
+    // Fields that are aggregated
+    static final String[] AGGREGATED_FIELDS = {"air_temp", "rel_hum", "wind_spd_kmh"};
+    // Width of one time bucket
+    static final long BUCKET_WIDTH_MS = 5000;
+    // Upper bound on distinct groups so malformed input cannot grow the map without limit
+    private static final int MAX_GROUPS = 4096;
+
+    private final long maxWindowMs;
+    private final int bucketCount;
+    private final int[] fieldIndexes;
+    private final ConcurrentHashMap<String, AtomicReferenceArray<Bucket>> groups = new ConcurrentHashMap<>();
+    // Where the current record of every station is counted, so it can be taken out again
+    private final ConcurrentHashMap<String, Contribution> stations = new ConcurrentHashMap<>();
+
+    // maxWindowMs is the longest window that can be queried. Records leave the aggregates when they expire,
+    // so the server passes its expiry time; a longer window could not hold anything more.
+    public StateAggregates(long maxWindowMs) {
+        this.maxWindowMs = maxWindowMs;
+        // One extra bucket so the partially filled current bucket never overwrites the oldest one in the window
+        this.bucketCount = (int) (maxWindowMs / BUCKET_WIDTH_MS) + 1;
+        this.fieldIndexes = new int[AGGREGATED_FIELDS.length];
+        for (int i = 0; i < AGGREGATED_FIELDS.length; i++) {
+            fieldIndexes[i] = WeatherFields.numericIndex(AGGREGATED_FIELDS[i]);
+        }
+    }
+
+    long getMaxWindowMs() {
+        return maxWindowMs;
+    }
+
+    // Replace the record of a station with its latest update, values in WeatherFields.NUMERIC_FIELDS order
+    void record(String id, String state, long timestamp, double[] values) {
+        double[] aggregated = new double[fieldIndexes.length];
+        for (int field = 0; field < fieldIndexes.length; field++) {
+            aggregated[field] = values[fieldIndexes[field]];
+        }
+        // compute() keeps concurrent updates of the same station from both subtracting its previous record
+        stations.compute(id, (key, previous) -> {
+            if (previous != null) {
+                previous.bucket.subtract(previous.values);
+            }
+            AtomicReferenceArray<Bucket> buckets = state == null ? null : groupFor(state);
+            if (buckets == null) {
+                return null;
+            }
+            Bucket bucket = currentBucket(buckets, timestamp / BUCKET_WIDTH_MS);
+            bucket.add(aggregated);
+            return new Contribution(bucket, timestamp, aggregated);
+        });
+    }
+
+    // Take out the record of a station removed by the expiry sweep, unless the station has been updated since
+    void remove(String id, long timestamp) {
+        stations.computeIfPresent(id, (key, current) -> {
+            if (current.timestamp > timestamp) {
+                return current;
+            }
+            current.bucket.subtract(current.values);
+            return null;
+        });
+    }
+
+    // Clear buckets that have fallen out of the longest window, called by the expiry sweep
+    void evictExpired(long currentTime) {
+        long oldestEpoch = (currentTime - maxWindowMs) / BUCKET_WIDTH_MS;
+        for (AtomicReferenceArray<Bucket> buckets : groups.values()) {
+            for (int slot = 0; slot < buckets.length(); slot++) {
+                Bucket bucket = buckets.get(slot);
+                if (bucket != null && bucket.epoch < oldestEpoch) {
+                    buckets.compareAndSet(slot, bucket, null);
+                }
+            }
+        }
+    }
+
+    // Aggregates of every group over the last windowMs, groups without data in the window are left out
+    JSONObject query(long currentTime, long windowMs) {
+        long currentEpoch = currentTime / BUCKET_WIDTH_MS;
+        long bucketsInWindow = Math.min(bucketCount - 1, Math.max(1, windowMs / BUCKET_WIDTH_MS));
+
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, AtomicReferenceArray<Bucket>> group : groups.entrySet()) {
+            long[] counts = new long[AGGREGATED_FIELDS.length];
+            double[] sums = new double[AGGREGATED_FIELDS.length];
+            double[] mins = new double[AGGREGATED_FIELDS.length];
+            double[] maxs = new double[AGGREGATED_FIELDS.length];
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+
+            // Merge the buckets covered by the window
+            AtomicReferenceArray<Bucket> buckets = group.getValue();
+            for (long epoch = currentEpoch - bucketsInWindow + 1; epoch <= currentEpoch; epoch++) {
+                Bucket bucket = buckets.get(slot(epoch));
+                if (bucket != null && bucket.epoch == epoch) {
+                    bucket.mergeInto(counts, sums, mins, maxs);
+                }
+            }
+
+            JSONObject groupJson = new JSONObject();
+            for (int field = 0; field < AGGREGATED_FIELDS.length; field++) {
+                if (counts[field] == 0) {
+                    continue;
+                }
+                JSONObject fieldJson = new JSONObject();
+                fieldJson.put("count", counts[field]);
+                fieldJson.put("min", mins[field]);
+                fieldJson.put("max", maxs[field]);
+                fieldJson.put("avg", sums[field] / counts[field]);
+                groupJson.put(AGGREGATED_FIELDS[field], fieldJson);
+            }
+            if (groupJson.length() > 0) {
+                result.put(group.getKey(), groupJson);
+            }
+        }
+        return result;
+    }
+
+    // Parse a window such as "30s", "5m", "1h" or plain milliseconds
+    static long parseWindow(String window) {
+        String value = window.trim();
+        long unit = 1;
+        if (value.endsWith("s")) {
+            unit = 1000;
+        } else if (value.endsWith("m")) {
+            unit = 60 * 1000;
+        } else if (value.endsWith("h")) {
+            unit = 60 * 60 * 1000;
+        }
+        if (unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        long windowMs = Long.parseLong(value) * unit;
+        if (windowMs <= 0) {
+            throw new NumberFormatException("Window must be positive: " + window);
+        }
+        return windowMs;
+    }
+
+    // Buckets of a group, null when there are already too many groups
+    private AtomicReferenceArray<Bucket> groupFor(String state) {
+        AtomicReferenceArray<Bucket> buckets = groups.get(state);
+        if (buckets == null) {
+            if (groups.size() >= MAX_GROUPS) {
+                return null;
+            }
+            buckets = groups.computeIfAbsent(state, key -> new AtomicReferenceArray<>(bucketCount));
+        }
+        return buckets;
+    }
+
+    // Bucket for the given epoch, replacing a stale bucket left over from an earlier turn of the ring
+    private Bucket currentBucket(AtomicReferenceArray<Bucket> buckets, long epoch) {
+        int slot = slot(epoch);
+        while (true) {
+            Bucket bucket = buckets.get(slot);
+            if (bucket != null && bucket.epoch == epoch) {
+                return bucket;
+            }
+            if (bucket != null && bucket.epoch > epoch) {
+                // Late update for a bucket that has already been recycled, count it in the newer one
+                return bucket;
+            }
+            Bucket fresh = new Bucket(epoch);
+            if (buckets.compareAndSet(slot, bucket, fresh)) {
+                return fresh;
+            }
+        }
+    }
+
+    private int slot(long epoch) {
+        return (int) (epoch % bucketCount);
+    }
+
+    // Bucket a station's record is counted in and its aggregated values
+    private static class Contribution {
+        final Bucket bucket;
+        final long timestamp;
+        final double[] values;
+
+        Contribution(Bucket bucket, long timestamp, double[] values) {
+            this.bucket = bucket;
+            this.timestamp = timestamp;
+            this.values = values;
+        }
+    }
+
+    // Accumulators of one time bucket, one set per aggregated field.
+    // A bucket only changes under its own lock, so updates of different states and time buckets do not contend.
+    private static class Bucket {
+        final long epoch;
+        private final long[] counts = new long[AGGREGATED_FIELDS.length];
+        private final double[] sums = new double[AGGREGATED_FIELDS.length];
+        // Value to number of records with that value, per field
+        private final List<TreeMap<Double, Integer>> values = new ArrayList<>(AGGREGATED_FIELDS.length);
+
+        Bucket(long epoch) {
+            this.epoch = epoch;
+            for (int field = 0; field < AGGREGATED_FIELDS.length; field++) {
+                values.add(new TreeMap<>());
+            }
+        }
+
+        synchronized void add(double[] recordValues) {
+            for (int field = 0; field < counts.length; field++) {
+                double value = recordValues[field];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                counts[field]++;
+                sums[field] += value;
+                values.get(field).merge(value, 1, Integer::sum);
+            }
+        }
+
+        synchronized void subtract(double[] recordValues) {
+            for (int field = 0; field < counts.length; field++) {
+                double value = recordValues[field];
+                if (Double.isNaN(value)) {
+                    continue;
+                }
+                Integer count = values.get(field).get(value);
+                if (count == null) {
+                    continue;
+                }
+                if (count == 1) {
+                    values.get(field).remove(value);
+                } else {
+                    values.get(field).put(value, count - 1);
+                }
+                counts[field]--;
+                // Start again from zero so rounding errors do not pile up in an emptied bucket
+                sums[field] = counts[field] == 0 ? 0 : sums[field] - value;
+            }
+        }
+
+        synchronized void mergeInto(long[] totalCounts, double[] totalSums, double[] totalMins, double[] totalMaxs) {
+            for (int field = 0; field < counts.length; field++) {
+                if (counts[field] == 0) {
+                    continue;
+                }
+                totalCounts[field] += counts[field];
+                totalSums[field] += sums[field];
+                totalMins[field] = Math.min(totalMins[field], values.get(field).firstKey());
+                totalMaxs[field] = Math.max(totalMaxs[field], values.get(field).lastKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+import java.util.Iterator; // Walks the stations from least to most recently updated
+import java.util.LinkedHashMap; // Stations in the order they were last updated
+import java.util.Map; // Entries of the station map
+import org.json.JSONArray; // Columns of the range query response
+import org.json.JSONObject; // Range query response
+
+// Bounded per-station time series of the numeric weather fields.
+// Every station gets a ring buffer stored column by column in primitive arrays. Buffers start small and double
+// up to the capacity as samples arrive, so stations that report rarely only pay for the samples they have.
+// The oldest samples are overwritten when a buffer is full and dropped once older than the retention time.
+// When the memory budget is reached the least recently updated stations are dropped first. The feeds of a server
+// process split -Dhistory.budget.bytes between them, see setBudgetBytes().
+public class StationHistory {
+    // Defaults, each can be overridden with a system property
+    private static final int DEFAULT_CAPACITY = 360;                         // -Dhistory.capacity (samples per station)
+    private static final long DEFAULT_RETENTION_MS = 60 * 60 * 1000L;         // -Dhistory.retention.ms
+    private static final long DEFAULT_BUDGET_BYTES = 256L * 1024 * 1024;      // -Dhistory.budget.bytes
+    // Budget of the whole process, shared by the histories of all feeds
+    static final long PROCESS_BUDGET_BYTES = Long.getLong("history.budget.bytes", DEFAULT_BUDGET_BYTES);
+    // Samples a new station's buffer starts with
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final int capacity;
+    private final long retentionMs;
+    // Station id to its buffer, least recently updated first. Guarded by this, as are budgetBytes and usedBytes.
+    private final LinkedHashMap<String, RingBuffer> buffers = new LinkedHashMap<>();
+    private long budgetBytes;
+    private long usedBytes;
+
+    public StationHistory(int capacity, long retentionMs, long memoryBudgetBytes) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.retentionMs = retentionMs;
+        this.budgetBytes = memoryBudgetBytes;
+    }
+
+    // Create a history configured from system properties
+    static StationHistory fromSystemProperties() {
+        return new StationHistory(
+            Integer.getInteger("history.capacity", DEFAULT_CAPACITY),
+            Long.getLong("history.retention.ms", DEFAULT_RETENTION_MS),
+            PROCESS_BUDGET_BYTES);
+    }
+
+    // Change the budget, dropping the least recently updated stations at once when it shrinks.
+    // The server gives every running feed an equal share of PROCESS_BUDGET_BYTES.
+    synchronized void setBudgetBytes(long memoryBudgetBytes) {
+        budgetBytes = memoryBudgetBytes;
+        makeRoom(0);
+    }
+
+    synchronized long budgetBytes() {
+        return budgetBytes;
+    }
+
+    // Approximate heap used by a buffer of the given capacity: a timestamp plus one double per numeric field for every sample
+    static long bytesPerStation(int capacity) {
+        return (long) capacity * 8 * (1 + WeatherFields.NUMERIC_FIELDS.length) + 64;
+    }
+
+    // Append a sample for a station, values in WeatherFields.NUMERIC_FIELDS order
+    synchronized void record(String id, long timestamp, double[] values) {
+        // Re-inserting moves the station to the most recently updated end
+        RingBuffer buffer = buffers.remove(id);
+        if (buffer == null) {
+            int initialCapacity = Math.min(INITIAL_CAPACITY, capacity);
+            makeRoom(bytesPerStation(initialCapacity));
+            buffer = new RingBuffer(initialCapacity);
+            usedBytes += buffer.bytes();
+        } else if (buffer.isFull() && buffer.capacity() < capacity) {
+            // Grow only when the budget allows it after dropping other stations, otherwise keep overwriting
+            int grownCapacity = Math.min(capacity, buffer.capacity() * 2);
+            long extraBytes = bytesPerStation(grownCapacity) - buffer.bytes();
+            if (makeRoom(extraBytes)) {
+                buffer.grow(grownCapacity);
+                usedBytes += extraBytes;
+            }
+        }
+        buffers.put(id, buffer);
+        buffer.add(timestamp, values);
+    }
+
+    // Samples of a station with from <= timestamp <= to, or null if the station has no history
+    JSONObject query(String id, long from, long to) {
+        RingBuffer buffer;
+        synchronized (this) {
+            buffer = buffers.get(id);
+        }
+        if (buffer == null) {
+            return null;
+        }
+        JSONObject result = new JSONObject();
+        result.put("id", id);
+        buffer.copyRange(from, to, result);
+        return result;
+    }
+
+    // Drop samples older than the retention time and forget stations without samples
+    synchronized void evictExpired(long currentTime) {
+        long cutoff = currentTime - retentionMs;
+        for (Iterator<RingBuffer> iterator = buffers.values().iterator(); iterator.hasNext(); ) {
+            RingBuffer buffer = iterator.next();
+            if (buffer.evictBefore(cutoff)) {
+                usedBytes -= buffer.bytes();
+                iterator.remove();
+            }
+        }
+    }
+
+    // Number of stations with history
+    synchronized int stationCount() {
+        return buffers.size();
+    }
+
+    // Estimated bytes held by all buffers
+    synchronized long usedBytes() {
+        return usedBytes;
+    }
+
+    // Drop the least recently updated stations until bytes more fit the budget, false if they cannot
+    private boolean makeRoom(long bytes) {
+        Iterator<Map.Entry<String, RingBuffer>> eldest = buffers.entrySet().iterator();
+        while (usedBytes + bytes > budgetBytes && eldest.hasNext()) {
+            usedBytes -= eldest.next().getValue().bytes();
+            eldest.remove();
+        }
+        return usedBytes + bytes <= budgetBytes;
+    }
+
+    // Ring buffer, values are stored column by column: values[field * capacity + slot]
+    private static class RingBuffer {
+        private long[] timestamps;
+        private double[] values;
+        private int head;  // Slot of the oldest sample
+        private int size;
+
+        RingBuffer(int capacity) {
+            timestamps = new long[capacity];
+            values = new double[capacity * WeatherFields.NUMERIC_FIELDS.length];
+        }
+
+        synchronized int capacity() {
+            return timestamps.length;
+        }
+
+        synchronized boolean isFull() {
+            return size == timestamps.length;
+        }
+
+        synchronized long bytes() {
+            return bytesPerStation(timestamps.length);
+        }
+
+        // Move the samples, oldest first, into larger arrays
+        synchronized void grow(int newCapacity) {
+            int oldCapacity = timestamps.length;
+            long[] newTimestamps = new long[newCapacity];
+            double[] newValues = new double[newCapacity * WeatherFields.NUMERIC_FIELDS.length];
+            for (int i = 0; i < size; i++) {
+                int slot = slot(i);
+                newTimestamps[i] = timestamps[slot];
+                for (int field = 0; field < WeatherFields.NUMERIC_FIELDS.length; field++) {
+                    newValues[field * newCapacity + i] = values[field * oldCapacity + slot];
+                }
+            }
+            timestamps = newTimestamps;
+            values = newValues;
+            head = 0;
+        }
+
+        synchronized void add(long timestamp, double[] sample) {
+            int capacity = timestamps.length;
+            // Keep timestamps ordered so range lookups can binary search
+            if (size > 0) {
+                timestamp = Math.max(timestamp, timestamps[slot(size - 1)]);
+            }
+            int slot;
+            if (size < capacity) {
+                slot = slot(size);
+                size++;
+            } else {
+                // Full: overwrite the oldest sample
+                slot = head;
+                head = (head + 1) % capacity;
+            }
+            timestamps[slot] = timestamp;
+            for (int field = 0; field < sample.length; field++) {
+                values[field * capacity + slot] = sample[field];
+            }
+        }
+
+        // Remove samples older than the cutoff, returns true when the buffer is empty afterwards
+        synchronized boolean evictBefore(long cutoff) {
+            int expired = firstAtOrAfter(cutoff);
+            head = slot(expired);
+            size -= expired;
+            return size == 0;
+        }
+
+        // Write the samples in [from, to] as columns into the result
+        synchronized void copyRange(long from, long to, JSONObject result) {
+            int capacity = timestamps.length;
+            int start = firstAtOrAfter(from);
+            int end = firstAtOrAfter(to == Long.MAX_VALUE ? to : to + 1);
+
+            JSONArray timestampColumn = new JSONArray();
+            for (int i = start; i < end; i++) {
+                timestampColumn.put(timestamps[slot(i)]);
+            }
+            result.put("timestamps", timestampColumn);
+
+            for (int field = 0; field < WeatherFields.NUMERIC_FIELDS.length; field++) {
+                JSONArray column = new JSONArray();
+                for (int i = start; i < end; i++) {
+                    double value = values[field * capacity + slot(i)];
+                    // JSON has no NaN, missing values are null
+                    column.put(Double.isNaN(value) ? JSONObject.NULL : value);
+                }
+                result.put(WeatherFields.NUMERIC_FIELDS[field], column);
+            }
+        }
+
+        // Index (0 = oldest) of the first sample with timestamp >= time
+        private int firstAtOrAfter(long time) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[slot(mid)] < time) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        // Array slot of the i-th oldest sample
+        private int slot(int i) {
+            return (head + i) % timestamps.length;
+        }
+    }
+}
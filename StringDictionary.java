@@ -0,0 +1,59 @@
+import java.util.Arrays; // To grow the code table
+import java.util.concurrent.ConcurrentHashMap; // Thread safe value to code lookup
+
+// Shared dictionary for low-cardinality strings: every distinct value is stored once and referred to by an int code.
+// The dictionary stops growing at maxSize so a field with unexpectedly many values cannot fill the heap,
+// callers keep such values as plain strings instead.
+public class StringDictionary {
+    private final int maxSize;
+    private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+    // Code to value, replaced when it grows so readers never need a lock
+    private volatile String[] values = new String[16];
+
+    public StringDictionary(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    // Code of the value, adding it if needed. -1 when the dictionary is full.
+    int encode(String value) {
+        Integer code = codes.get(value);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = codes.get(value);
+            if (code != null) {
+                return code;
+            }
+            int next = codes.size();
+            if (next >= maxSize) {
+                return -1;
+            }
+            String[] table = values;
+            if (next == table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            table[next] = value;
+            // Publish the value before the code becomes visible through the map
+            values = table;
+            codes.put(value, next);
+            return next;
+        }
+    }
+
+    // Value of a code returned by encode()
+    String decode(int code) {
+        return values[code];
+    }
+
+    // Shared instance of the value, or the value itself when the dictionary is full
+    String intern(String value) {
+        int code = encode(value);
+        return code < 0 ? value : decode(code);
+    }
+
+    // Number of distinct values
+    int size() {
+        return codes.size();
+    }
+}
@@ -0,0 +1,48 @@
+// Field schema shared by the record store, the history, the aggregates and the spatial index
+public class WeatherFields {
+    // Numeric fields kept as primitive doubles, in column order
+    static final String[] NUMERIC_FIELDS = {
+        "lat", "lon", "air_temp", "apparent_t", "dewpt", "press", "rel_hum", "wind_spd_kmh", "wind_spd_kt"
+    };
+    // Positions of the coordinates in NUMERIC_FIELDS
+    static final int LAT_INDEX = numericIndex("lat");
+    static final int LON_INDEX = numericIndex("lon");
+    // Low-cardinality text fields stored as shared dictionary codes
+    static final String[] DICTIONARY_FIELDS = {"state", "time_zone", "wind_dir", "cloud"};
+    static final int STATE_INDEX = dictionaryIndex("state");
+
+    // Position of a numeric field in NUMERIC_FIELDS, or -1 if the field is not numeric
+    static int numericIndex(String field) {
+        for (int i = 0; i < NUMERIC_FIELDS.length; i++) {
+            if (NUMERIC_FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Position of a dictionary field in DICTIONARY_FIELDS, or -1
+    static int dictionaryIndex(String field) {
+        for (int i = 0; i < DICTIONARY_FIELDS.length; i++) {
+            if (DICTIONARY_FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Numeric value of a JSON number or numeric string, NaN when missing or not a number
+    static double toDouble(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.parseDouble(((String) value).trim());
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return Double.NaN;
+    }
+}
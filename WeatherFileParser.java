@@ -0,0 +1,232 @@
+import java.io.*; // Provides Closeable and the I/O exceptions
+import java.nio.MappedByteBuffer; // Memory-mapped window of the file
+import java.nio.channels.FileChannel; // To map the file
+import java.nio.charset.StandardCharsets; // Files are read as UTF-8
+import java.nio.file.Paths; // To open the file channel
+import java.nio.file.StandardOpenOption; // Read-only access
+import java.util.Arrays; // To keep a copy of cached string bytes
+import java.util.Iterator; // Records are handed out one at a time
+import java.util.LinkedHashMap; // Key-value pairs of one station in file order
+import java.util.NoSuchElementException; // Iterator contract
+import java.util.Spliterator; // To expose the records as a stream
+import java.util.Spliterators; // To expose the records as a stream
+import java.util.stream.Stream; // Lazy stream of records
+import java.util.stream.StreamSupport; // Lazy stream of records
+
+// Fast reader for weather files holding any number of stations ("key:value" lines, every "id:" line starts a new record).
+// The file is memory-mapped in large windows and scanned byte by byte for ':' and '\n', so no line Strings are
+// created or split; only the trimmed key and value are decoded. Records are produced lazily, one per next() call.
+public class WeatherFileParser implements Iterator<LinkedHashMap<String, String>>, Closeable {
+    // Size of one mapped window, a line crossing the end of a window is re-read from the next one
+    private static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+    // Number of recently decoded strings kept so repeated keys and short values are not decoded again
+    private static final int STRING_CACHE_SIZE = 1024;
+    // Longer values (names, timestamps) rarely repeat and are always decoded
+    private static final int MAX_CACHED_VALUE_BYTES = 8;
+
+    private final FileChannel channel;
+    private final long windowSize;
+    private final long fileSize;
+    private MappedByteBuffer window;
+    private long windowStart;
+    // Position of the next unread byte inside the window
+    private int position;
+    // First ':' of the line found by findLineEnd()
+    private int separator;
+    // First line of the next record when it has already been read
+    private String pendingKey;
+    private String pendingValue;
+    private LinkedHashMap<String, String> nextRecord;
+
+    private final String[] cachedStrings = new String[STRING_CACHE_SIZE];
+    private final byte[][] cachedBytes = new byte[STRING_CACHE_SIZE][];
+    private byte[] scratch = new byte[256];
+
+    public WeatherFileParser(String filePath) throws IOException {
+        this(filePath, DEFAULT_WINDOW_SIZE);
+    }
+
+    // Smaller windows are used by the tests to exercise lines crossing a window boundary
+    WeatherFileParser(String filePath, long windowSize) throws IOException {
+        this.windowSize = windowSize;
+        channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+        fileSize = channel.size();
+        mapWindow(0);
+    }
+
+    // Lazy stream of the records of a file, closing the stream closes the file
+    static Stream<LinkedHashMap<String, String>> stream(String filePath) throws IOException {
+        WeatherFileParser parser = new WeatherFileParser(filePath);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(parser, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(() -> {
+                                try {
+                                    parser.close();
+                                } catch (IOException e) {
+                                    throw new UncheckedIOException(e);
+                                }
+                            });
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextRecord == null) {
+            try {
+                nextRecord = readRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return nextRecord != null;
+    }
+
+    @Override
+    public LinkedHashMap<String, String> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        LinkedHashMap<String, String> record = nextRecord;
+        nextRecord = null;
+        return record;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Read lines until the next "id:" line or the end of the file
+    private LinkedHashMap<String, String> readRecord() throws IOException {
+        LinkedHashMap<String, String> record = new LinkedHashMap<>();
+        if (pendingKey != null) {
+            record.put(pendingKey, pendingValue);
+            pendingKey = null;
+        }
+
+        while (true) {
+            int lineEnd = findLineEnd();
+            if (lineEnd < 0) {
+                break;
+            }
+            int lineStart = position;
+            int separator = this.separator;
+            // Skip the '\n' for the next line
+            position = Math.min(lineEnd + 1, window.limit());
+
+            // Lines without ':' carry no key-value pair
+            if (separator < 0) {
+                continue;
+            }
+            // Trimmed from keyStart, so a key of only whitespace ends up empty rather than with its end before its start
+            int keyStart = trimStart(lineStart, separator);
+            String key = decodeCached(keyStart, trimEnd(keyStart, separator));
+            int valueStart = trimStart(separator + 1, lineEnd);
+            int valueEnd = trimEnd(valueStart, lineEnd);
+            String value = valueEnd - valueStart <= MAX_CACHED_VALUE_BYTES ? decodeCached(valueStart, valueEnd)
+                                                                         : decode(valueStart, valueEnd);
+
+            if (key.equals("id") && !record.isEmpty()) {
+                // This line starts the next station
+                pendingKey = key;
+                pendingValue = value;
+                return record;
+            }
+            record.put(key, value);
+        }
+        return record.isEmpty() ? null : record;
+    }
+
+    // Index in the window of the '\n' ending the line at position (or the end of the file), -1 when no lines are left.
+    // The first ':' of the line is found in the same pass and left in separator (-1 when the line has none).
+    private int findLineEnd() throws IOException {
+        while (true) {
+            int limit = window.limit();
+            separator = -1;
+            for (int i = position; i < limit; i++) {
+                byte b = window.get(i);
+                if (b == '\n') {
+                    return i;
+                }
+                if (b == ':' && separator < 0) {
+                    separator = i;
+                }
+            }
+            long lineStart = windowStart + position;
+            if (windowStart + limit >= fileSize) {
+                // Last line without a trailing newline
+                return position < limit ? limit : -1;
+            }
+            if (position == 0) {
+                throw new IOException("Line longer than " + windowSize + " bytes at offset " + lineStart);
+            }
+            // The line continues past this window, map the next one from the start of the line
+            mapWindow(lineStart);
+        }
+    }
+
+    private void mapWindow(long start) throws IOException {
+        windowStart = start;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, fileSize - start));
+        position = 0;
+    }
+
+    // Skip leading whitespace (and control characters, like String.trim)
+    private int trimStart(int from, int to) {
+        while (from < to && (window.get(from) & 0xFF) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    // Skip trailing whitespace, including a '\r' of Windows line endings
+    private int trimEnd(int from, int to) {
+        while (to > from && (window.get(to - 1) & 0xFF) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private String decode(int from, int to) {
+        int length = copyToScratch(from, to);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Keys and values like states or wind directions repeat for every station,
+    // reuse the String when the bytes match a recently decoded one
+    private String decodeCached(int from, int to) {
+        int length = copyToScratch(from, to);
+        int hash = length;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + scratch[i];
+        }
+        hash ^= hash >>> 16;
+        int slot = hash & (STRING_CACHE_SIZE - 1);
+        byte[] cached = cachedBytes[slot];
+        if (cached != null && cached.length == length && regionMatches(cached, length)) {
+            return cachedStrings[slot];
+        }
+        String decoded = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        cachedBytes[slot] = Arrays.copyOf(scratch, length);
+        cachedStrings[slot] = decoded;
+        return decoded;
+    }
+
+    private boolean regionMatches(byte[] cached, int length) {
+        for (int i = 0; i < length; i++) {
+            if (cached[i] != scratch[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Bulk copy of window bytes into the scratch buffer, returns the length
+    private int copyToScratch(int from, int to) {
+        int length = to - from;
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        window.position(from);
+        window.get(scratch, 0, length);
+        return length;
+    }
+}
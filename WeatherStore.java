@@ -0,0 +1,41 @@
+import java.util.List; // Snapshot of the stored records
+import java.util.function.BiConsumer; // Callback for every expired station
+
+// Storage of the latest weather record per station id.
+// Select the implementation at startup with -Dstore=heap (default) or -Dstore=offheap.
+public interface WeatherStore {
+
+    // Store or replace the record of a station
+    void put(String id, CompactWeatherRecord record, long timestamp);
+
+    // Latest record of a station, or null
+    AggregationServer.WeatherRecord get(String id);
+
+    // Snapshot of all stored records
+    List<AggregationServer.WeatherRecord> values();
+
+    // Remove records received before the cutoff, calling onRemove with the id and timestamp of each one
+    void removeExpired(long cutoff, BiConsumer<String, Long> onRemove);
+
+    // Number of stored stations
+    int size();
+
+    // Estimated memory held by the stored records
+    long estimatedBytes();
+
+    // Short name of the implementation, reported by GET /stats
+    String name();
+
+    // Create the store selected by -Dstore
+    static WeatherStore fromSystemProperties() {
+        String store = System.getProperty("store", "heap");
+        switch (store) {
+            case "heap":
+                return new HeapWeatherStore();
+            case "offheap":
+                return new OffHeapWeatherStore();
+            default:
+                throw new IllegalArgumentException("Unknown store: " + store + " (expected heap or offheap)");
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.lang.management.GarbageCollectorMXBean; // GC counts and times
+import java.lang.management.ManagementFactory; // Access to the GC beans
+import java.util.Random; // Random lookups
+import org.json.JSONObject; // Sample records are built as received JSON
+
+// Compare the on-heap and off-heap weather stores, e.g. java WeatherStoreBenchmark 1000000
+// For each store: put and get cost, a full scan, heap used and the pause of a full GC with the store populated.
+public class WeatherStoreBenchmark {
+    private static final String[] STATES = {"SA", "NSW", "VIC", "QLD", "WA", "TAS", "NT", "ACT"};
+
+    public static void main(String[] args) {
+        int stations = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        System.out.println("Stations: " + stations + ", lookups: " + lookups);
+        System.out.printf("%-8s %10s %10s %10s %12s %12s %12s%n",
+                          "store", "put ns/op", "get ns/op", "scan ms", "heap MB", "full GC ms", "GC ms total");
+        run(new HeapWeatherStore(), stations, lookups);
+        run(new OffHeapWeatherStore(), stations, lookups);
+    }
+
+    private static void run(WeatherStore store, int stations, int lookups) {
+        long heapBefore = usedHeap();
+        long gcBefore = totalGcMillis();
+
+        long start = System.nanoTime();
+        for (int i = 0; i < stations; i++) {
+            store.put("IDS" + (100000 + i), CompactWeatherRecord.fromJson(sampleJson(i)), System.currentTimeMillis());
+        }
+        long putNanos = System.nanoTime() - start;
+
+        Random random = new Random(42);
+        long found = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            if (store.get("IDS" + (100000 + random.nextInt(stations))) != null) {
+                found++;
+            }
+        }
+        long getNanos = System.nanoTime() - start;
+        if (found != lookups) {
+            throw new IllegalStateException("Lookups missed: " + (lookups - found));
+        }
+
+        start = System.nanoTime();
+        int scanned = store.values().size();
+        long scanMillis = (System.nanoTime() - start) / 1000000;
+        if (scanned != stations) {
+            throw new IllegalStateException("Scan returned " + scanned + " records");
+        }
+
+        long heapBytes = usedHeap() - heapBefore;
+        // A full collection has to trace every live heap object, off-heap records are not among them
+        start = System.nanoTime();
+        System.gc();
+        long fullGcMillis = (System.nanoTime() - start) / 1000000;
+
+        System.out.printf("%-8s %10d %10d %10d %12d %12d %12d%n", store.name(), putNanos / stations, getNanos / lookups,
+                          scanMillis, heapBytes / (1024 * 1024), fullGcMillis, totalGcMillis() - gcBefore);
+    }
+
+    // A record shaped like the weather files, parsed from text like a received PUT body
+    private static JSONObject sampleJson(int i) {
+        JSONObject weatherJson = new JSONObject();
+        weatherJson.put("id", "IDS" + (100000 + i));
+        weatherJson.put("name", "Station " + i);
+        weatherJson.put("state", STATES[i % STATES.length]);
+        weatherJson.put("time_zone", "CST");
+        weatherJson.put("lat", String.valueOf(-10 - (i % 300) / 10.0));
+        weatherJson.put("lon", String.valueOf(110 + (i % 400) / 10.0));
+        weatherJson.put("local_date_time", "15/04:00pm");
+        weatherJson.put("local_date_time_full", "20230715160000");
+        weatherJson.put("air_temp", String.valueOf((i % 400) / 10.0));
+        weatherJson.put("rel_hum", String.valueOf(i % 100));
+        weatherJson.put("wind_dir", "SW");
+        weatherJson.put("wind_spd_kmh", "15");
+        return new JSONObject(weatherJson.toString());
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long totalGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+}